@@ -0,0 +1,47 @@
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with 1, N/2 and N threads, N being the number of
+ * available processors, reporting throughput, average latency and allocation
+ * rate. Results of each run are written as JSON to target/jmh-{threads}.json.
+ * 
+ * Usage: mvn -Pbenchmark compile exec:exec [-Dbenchmark.args=regexp]
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) throws RunnerException {
+		String include = args.length > 0 ? args[0] : "Benchmark";
+
+		int processors = Runtime.getRuntime().availableProcessors();
+		TreeSet<Integer> threadCounts = new TreeSet<>();
+		threadCounts.add(1);
+		threadCounts.add(Math.max(1, processors / 2));
+		threadCounts.add(processors);
+
+		for (int threads : threadCounts) {
+			Options options = new OptionsBuilder()
+					.include(include)
+					.mode(Mode.Throughput)
+					.mode(Mode.AverageTime)
+					.timeUnit(TimeUnit.MICROSECONDS)
+					.threads(threads)
+					.forks(1)
+					.addProfiler(GCProfiler.class)
+					.result("target/jmh-" + threads + ".json")
+					.resultFormat(ResultFormatType.JSON)
+					.build();
+
+			new Runner(options).run();
+		}
+	}
+
+}
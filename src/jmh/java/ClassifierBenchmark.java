@@ -0,0 +1,110 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.tensorflow.Tensor;
+
+/**
+ * Benchmarks of {@link CaptchaClassifier}, and of {@link JavaCnnClassifier}
+ * running the same model without Tensorflow, over the characters segmented
+ * from the samples.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClassifierBenchmark {
+
+	private CaptchaClassifier classifier;
+	private JavaCnnClassifier javaClassifier;
+	private ModelRegistry registry;
+	private CnnModel model;
+	private SessionPool sessionPool;
+
+	// Segmented characters of each sample
+	private final List<List<byte[]>> captchaChars = new ArrayList<>();
+	private final List<List<CharacterImage>> captchaPixels = new ArrayList<>();
+	private final List<byte[]> chars = new ArrayList<>();
+	private int nextCaptcha;
+	private int nextChar;
+
+	@Setup
+	public void setUp() throws IOException {
+		// Retained so its sessions stay open whatever the other benchmarks do
+		registry = ModelRegistry.shared();
+		model = registry.acquire();
+		sessionPool = model.sessionPool();
+		sessionPool.warmUp();
+		classifier = new CaptchaClassifier(0.6f, registry);
+		javaClassifier = new JavaCnnClassifier(0.6f, model);
+
+		CaptchaImageProcessor processor = new CaptchaImageProcessor();
+		for (byte[] image : new Samples().all()) {
+			List<byte[]> segmentedChars = processor.process(image);
+			captchaChars.add(segmentedChars);
+			captchaPixels.add(processor.processPixels(image));
+			chars.addAll(segmentedChars);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		registry.release(model);
+	}
+
+	private byte[] nextChar() {
+		byte[] imageBytes = chars.get(nextChar);
+		nextChar = (nextChar + 1) % chars.size();
+		return imageBytes;
+	}
+
+	private int nextCaptcha() {
+		int index = nextCaptcha;
+		nextCaptcha = (nextCaptcha + 1) % captchaChars.size();
+		return index;
+	}
+
+	@Benchmark
+	public float[] normalizedImage() {
+		byte[] imageBytes = nextChar();
+		return sessionPool.run(session -> {
+			try (Tensor<Float> image = classifier.normalizedImage(session, imageBytes)) {
+				return image.copyTo(new float[1][CharacterImage.HEIGHT][CharacterImage.WIDTH][CharacterImage.CHANNELS])[0][0][0];
+			}
+		});
+	}
+
+	@Benchmark
+	public String classify() {
+		return classifier.classify(nextChar());
+	}
+
+	@Benchmark
+	public List<String> classifyBatch() {
+		return classifier.classifyBatch(captchaChars.get(nextCaptcha()));
+	}
+
+	@Benchmark
+	public List<String> classifyPixels() {
+		return classifier.classifyPixels(captchaPixels.get(nextCaptcha()));
+	}
+
+	@Benchmark
+	public String javaClassify() {
+		return javaClassifier.classify(nextChar());
+	}
+
+	@Benchmark
+	public List<String> javaClassifyPixels() {
+		return javaClassifier.classifyPixels(captchaPixels.get(nextCaptcha()));
+	}
+
+}
@@ -0,0 +1,43 @@
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * End-to-end benchmark of {@link DLDecaptcher} and {@link FusedDecaptcher}
+ * over the samples. The gc.alloc.rate.norm result of the GC profiler is the
+ * heap allocated per captcha.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DecaptcherBenchmark {
+
+	private DLDecaptcher decaptcher;
+	private FusedDecaptcher fusedDecaptcher;
+	private Samples samples;
+
+	@Setup
+	public void setUp() throws IOException {
+		decaptcher = new DLDecaptcher();
+		fusedDecaptcher = new FusedDecaptcher(DLDecaptcher.DEFAULT_THRESHOLD);
+		samples = new Samples();
+	}
+
+	@Benchmark
+	public String decapcha() {
+		return decaptcher.decapcha(samples.next());
+	}
+
+	@Benchmark
+	public String decapchaFused() {
+		return fusedDecaptcher.decapcha(samples.next());
+	}
+
+}
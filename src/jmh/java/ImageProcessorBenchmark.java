@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks of each OpenCV stage of {@link CaptchaImageProcessor}, for the
+ * default processor and the fast one (native resolution, mean background
+ * check).
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ImageProcessorBenchmark {
+
+	@Param({ "default", "fast" })
+	public String processorMode;
+
+	private CaptchaImageProcessor processor;
+	private CaptchaImageProcessor componentsProcessor;
+	private Samples samples;
+
+	// Decoded and thresholded samples, inputs of the later stages
+	private final List<Mat> decoded = new ArrayList<>();
+	private final List<Mat> thresholded = new ArrayList<>();
+	private final List<Mat> crops = new ArrayList<>();
+	private final List<Mat> colorCrops = new ArrayList<>();
+	private int next;
+	private int nextCrop;
+
+	@Setup
+	public void setUp() throws IOException {
+		boolean fast = "fast".equals(processorMode);
+		processor = fast
+				? CaptchaImageProcessor.fastProcessor()
+				: new CaptchaImageProcessor();
+		componentsProcessor = new CaptchaImageProcessor(fast ? 1.0 : CaptchaImageProcessor.DEFAULT_SCALE, fast, 0,
+				CaptchaImageProcessor.Segmentation.CONNECTED_COMPONENTS);
+		samples = new Samples();
+
+		for (byte[] image : samples.all()) {
+			Mat imageMat = CaptchaImageProcessor.byteArray2Mat(image);
+			decoded.add(imageMat);
+
+			Mat threshCaptcha = processor.thresholdCaptchaImage(imageMat.clone());
+			thresholded.add(threshCaptcha);
+
+			// Segmented characters, thresholding keeps the size of the image
+			for (Rect rect : processor.findCharacterRects(threshCaptcha, 5, 5)) {
+				crops.add(threshCaptcha.submat(rect));
+				colorCrops.add(imageMat.submat(rect));
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (List<Mat> mats : Arrays.asList(crops, colorCrops, thresholded, decoded)) {
+			for (Mat mat : mats) {
+				mat.release();
+			}
+			mats.clear();
+		}
+	}
+
+	private int nextIndex() {
+		int index = next;
+		next = (next + 1) % decoded.size();
+		return index;
+	}
+
+	private int nextCrop() {
+		int index = nextCrop;
+		nextCrop = (nextCrop + 1) % crops.size();
+		return index;
+	}
+
+	@Benchmark
+	public List<byte[]> process() throws IOException {
+		return processor.process(samples.next());
+	}
+
+	@Benchmark
+	public List<CharacterImage> processPixels() throws IOException {
+		return processor.processPixels(samples.next());
+	}
+
+	/**
+	 * Decoded images are released in the benchmark, so native memory does not
+	 * grow with the invocations. The release is included in the measurement.
+	 */
+	@Benchmark
+	public int byteArray2Mat() {
+		Mat imageMat = CaptchaImageProcessor.byteArray2Mat(samples.next());
+		int rows = imageMat.rows();
+		imageMat.release();
+		return rows;
+	}
+
+	/**
+	 * Thresholding changes its input, so each invocation works on a copy of the
+	 * decoded sample. The copy and the release of both images are included in
+	 * the measurement.
+	 */
+	@Benchmark
+	public int thresholdCaptchaImage() throws IOException {
+		Mat copy = decoded.get(nextIndex()).clone();
+		Mat threshCaptcha = processor.thresholdCaptchaImage(copy);
+		int rows = threshCaptcha.rows();
+		threshCaptcha.release();
+		copy.release();
+		return rows;
+	}
+
+	@Benchmark
+	public List<Rect> findCharacterRects() {
+		return processor.findCharacterRects(thresholded.get(nextIndex()), 5, 5);
+	}
+
+	@Benchmark
+	public List<Rect> findCharacterRectsComponents() {
+		return componentsProcessor.findCharacterRects(thresholded.get(nextIndex()), 5, 5);
+	}
+
+	@Benchmark
+	public List<byte[]> segmentCaptchaImage() {
+		return processor.segmentCaptchaImage(thresholded.get(nextIndex()), 5, 5);
+	}
+
+	/**
+	 * Encoding of a thresholded character. Run with the gc profiler, as
+	 * Benchmarks does, gc.alloc.rate.norm should be little more than the
+	 * returned JPEG.
+	 */
+	@Benchmark
+	public byte[] mat2byteArray() throws IOException {
+		return CaptchaImageProcessor.mat2byteArray(crops.get(nextCrop()));
+	}
+
+	@Benchmark
+	public byte[] mat2byteArrayColor() throws IOException {
+		return CaptchaImageProcessor.mat2byteArray(colorCrops.get(nextCrop()));
+	}
+
+}
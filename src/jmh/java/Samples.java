@@ -0,0 +1,53 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Captcha images bundled in src/main/resources/Samples, used as input of the
+ * benchmarks. The directory can be changed with the samples.dir system
+ * property.
+ */
+public class Samples {
+
+	private final List<byte[]> images = new ArrayList<>();
+	private int next;
+
+	public Samples() throws IOException {
+		Path dir = Paths.get(System.getProperty("samples.dir", "src/main/resources/Samples"));
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.jpg")) {
+			for (Path file : files) {
+				images.add(Files.readAllBytes(file));
+			}
+		}
+
+		if (images.isEmpty()) {
+			throw new IOException("No sample captcha found in " + dir.toAbsolutePath());
+		}
+	}
+
+	/**
+	 * All sample images.
+	 * 
+	 * @return
+	 */
+	public List<byte[]> all() {
+		return images;
+	}
+
+	/**
+	 * Next sample image, cycling through all of them. Not thread-safe: each
+	 * benchmark thread has its own Samples.
+	 * 
+	 * @return
+	 */
+	public byte[] next() {
+		byte[] image = images.get(next);
+		next = (next + 1) % images.size();
+		return image;
+	}
+
+}
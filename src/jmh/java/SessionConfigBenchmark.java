@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Compares Tensorflow session threading settings, for many small inferences
+ * (batches of 1 character) and for few large ones (batches of 64 characters).
+ * All benchmark threads share one pool of sessions, as the classifiers of an
+ * application do. Characters per second are the throughput times the batch
+ * size.
+ *
+ * Tensorflow sizes its process-wide thread pools with the first session, so
+ * each setting must run in its own fork, which is the default of
+ * {@link Benchmarks}.
+ *
+ * Usage: mvn -Pbenchmark compile exec:exec -Dbenchmark.args=SessionConfigBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SessionConfigBenchmark {
+
+	/**
+	 * intraOp/interOp threads, "per-core" for processors / pool size threads
+	 * per session and "default" for the Tensorflow defaults.
+	 */
+	@Param({ "per-core", "1/1", "2/1", "4/2", "default" })
+	public String threads;
+
+	@Param({ "1", "8", "64" })
+	public int batchSize;
+
+	@Param({ "false", "true" })
+	public boolean perSessionThreads;
+
+	private ModelRegistry registry;
+	private CaptchaClassifier classifier;
+	private final List<List<CharacterImage>> batches = new ArrayList<>();
+	private int nextBatch;
+
+	@Setup
+	public void setUp() throws IOException {
+		int poolSize = Runtime.getRuntime().availableProcessors();
+		SessionConfig sessionConfig;
+		if (threads.equals("per-core")) {
+			SessionConfig perCore = SessionConfig.forPoolSize(poolSize);
+			sessionConfig = new SessionConfig(poolSize, perCore.intraOpThreads(), perCore.interOpThreads(),
+					perSessionThreads);
+		} else if (threads.equals("default")) {
+			sessionConfig = new SessionConfig(poolSize, 0, 0, perSessionThreads);
+		} else {
+			String[] counts = threads.split("/");
+			sessionConfig = new SessionConfig(poolSize, Integer.parseInt(counts[0]), Integer.parseInt(counts[1]),
+					perSessionThreads);
+		}
+
+		registry = new ModelRegistry(CnnModel.fromClasspath(sessionConfig.toString(),
+				ModelRegistry.DEFAULT_GRAPH_RESOURCE, ModelRegistry.DEFAULT_LABELS_RESOURCE, sessionConfig));
+		classifier = new CaptchaClassifier(0.6f, registry);
+		classifier.warmUp();
+
+		// Batches of batchSize characters taken round robin from the samples
+		List<CharacterImage> chars = new ArrayList<>();
+		CaptchaImageProcessor processor = new CaptchaImageProcessor();
+		for (byte[] image : new Samples().all()) {
+			chars.addAll(processor.processPixels(image));
+		}
+		for (int start = 0; start < chars.size(); start += batchSize) {
+			List<CharacterImage> batch = new ArrayList<>(batchSize);
+			for (int i = 0; i < batchSize; i++) {
+				batch.add(chars.get((start + i) % chars.size()));
+			}
+			batches.add(batch);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		registry.close();
+	}
+
+	private synchronized List<CharacterImage> nextBatch() {
+		List<CharacterImage> batch = batches.get(nextBatch);
+		nextBatch = (nextBatch + 1) % batches.size();
+		return batch;
+	}
+
+	@Benchmark
+	public List<String> classifyPixels() {
+		return classifier.classifyPixels(nextBatch());
+	}
+
+}
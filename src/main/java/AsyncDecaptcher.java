@@ -0,0 +1,18 @@
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Decaptcher able to identify captchas without blocking the calling thread,
+ * typically a remote solving service.
+ */
+public interface AsyncDecaptcher extends Decaptcher {
+
+	/**
+	 * Identifies the text in the captcha image without blocking the calling
+	 * thread.
+	 * 
+	 * @param captchaImage
+	 * @return future completed with the text of the captcha
+	 */
+	public CompletableFuture<String> decapchaAsync(byte[] captchaImage);
+
+}
@@ -0,0 +1,240 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Command-line batch mode: solves every captcha image of a directory, a zip or
+ * an uncompressed tar archive and writes one line per image to a CSV or JSONL
+ * file, with columns file, prediction, confidence, latency_us and error. The
+ * confidence is the probability of the least confident character. An image
+ * that can not be solved gets a line with its error and no prediction, and
+ * does not stop the others.
+ *
+ * Images are read lazily and results are written as soon as they are solved,
+ * so memory stays flat whatever the number of images.
+ *
+ * Usage: BatchSolver input-directory|archive.zip|archive.tar output.csv|output.jsonl [threads]
+ */
+public class BatchSolver {
+
+	private final BulkDecaptcher decaptcher;
+
+	public BatchSolver(BulkDecaptcher decaptcher) {
+		this.decaptcher = decaptcher;
+	}
+
+	/**
+	 * Solve all captcha images of the input and write the results.
+	 *
+	 * @param input
+	 *            directory, zip or tar archive
+	 * @param output
+	 *            output file, in JSONL format if its name ends with .jsonl and
+	 *            in CSV format otherwise
+	 * @return number of images solved
+	 * @throws IOException
+	 */
+	public long solve(Path input, Path output) throws IOException {
+		boolean jsonl = output.getFileName().toString().toLowerCase().endsWith(".jsonl");
+
+		try (CaptchaSource source = CaptchaSource.open(input);
+				ResultWriter writer = new ResultWriter(Files.newBufferedWriter(output, StandardCharsets.UTF_8), jsonl)) {
+
+			decaptcher.solveAll(source.iterator(), captchaImage -> {
+				long start = System.nanoTime();
+				String prediction;
+				Float confidence = null;
+				if (decaptcher.decaptcher() instanceof DLDecaptcher) {
+					CaptchaPrediction detailed = ((DLDecaptcher) decaptcher.decaptcher()).decapchaDetailed(captchaImage);
+					prediction = detailed.text();
+					confidence = Float.isNaN(detailed.confidence()) ? null : detailed.confidence();
+				} else {
+					prediction = decaptcher.decapcha(captchaImage);
+				}
+				long latencyMicros = (System.nanoTime() - start) / 1000;
+				return new Result(prediction, confidence, latencyMicros, null);
+			}, writer::write, (file, failure) -> writer.write(file, new Result(null, null, 0, String.valueOf(failure))));
+
+			return writer.count;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: BatchSolver input-directory|archive.zip|archive.tar output.csv|output.jsonl [threads]");
+			System.exit(1);
+		}
+
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		try (BulkDecaptcher decaptcher = BulkDecaptcher.forModel(DLDecaptcher.DEFAULT_THRESHOLD, threads, 4 * threads)) {
+			long start = System.nanoTime();
+			long count = new BatchSolver(decaptcher).solve(Paths.get(args[0]), Paths.get(args[1]));
+			long elapsedMillis = (System.nanoTime() - start) / 1000000;
+			System.err.println("Solved " + count + " captchas in " + elapsedMillis + " ms");
+		}
+	}
+
+	private static class Result {
+		private final String prediction;
+		private final Float confidence;
+		private final long latencyMicros;
+		private final String error;
+
+		private Result(String prediction, Float confidence, long latencyMicros, String error) {
+			this.prediction = prediction;
+			this.confidence = confidence;
+			this.latencyMicros = latencyMicros;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * Writes results, one line each, from concurrent threads.
+	 */
+	private static class ResultWriter implements Closeable {
+		private final Writer writer;
+		private final boolean jsonl;
+		private long count;
+
+		private ResultWriter(BufferedWriter writer, boolean jsonl) throws IOException {
+			this.writer = writer;
+			this.jsonl = jsonl;
+			if (!jsonl) {
+				writer.write("file,prediction,confidence,latency_us,error\n");
+			}
+		}
+
+		private synchronized void write(String file, Result result) {
+			String confidence = result.confidence == null ? "" : result.confidence.toString();
+			try {
+				if (jsonl) {
+					writer.write("{\"file\":" + json(file) + ",\"prediction\":" + json(result.prediction)
+							+ ",\"confidence\":" + (confidence.isEmpty() ? "null" : confidence) + ",\"latency_us\":"
+							+ result.latencyMicros + ",\"error\":" + json(result.error) + "}\n");
+				} else {
+					writer.write(csv(file) + "," + csv(result.prediction) + "," + confidence + ","
+							+ result.latencyMicros + "," + csv(result.error) + "\n");
+				}
+				count++;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private static String csv(String value) {
+			if (value == null) {
+				return "";
+			}
+			if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+				return "\"" + value.replace("\"", "\"\"") + "\"";
+			}
+			return value;
+		}
+
+		private static String json(String value) {
+			if (value == null) {
+				return "null";
+			}
+			StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+			for (char c : value.toCharArray()) {
+				if (c == '"' || c == '\\') {
+					json.append('\\').append(c);
+				} else if (c < 0x20) {
+					json.append(String.format("\\u%04x", (int) c));
+				} else {
+					json.append(c);
+				}
+			}
+			return json.append('"').toString();
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Lazy source of captcha images: a directory tree, a zip or a tar archive.
+	 */
+	private static class CaptchaSource implements Closeable {
+		private final Iterator<Map.Entry<String, byte[]>> iterator;
+		private final Closeable resource;
+
+		private CaptchaSource(Iterator<Map.Entry<String, byte[]>> iterator, Closeable resource) {
+			this.iterator = iterator;
+			this.resource = resource;
+		}
+
+		private static CaptchaSource open(Path input) throws IOException {
+			String name = input.getFileName().toString().toLowerCase();
+
+			if (Files.isDirectory(input)) {
+				Stream<Path> files = Files.walk(input);
+				return new CaptchaSource(images(files, input), files::close);
+			}
+
+			if (name.endsWith(".tar")) {
+				TarReader tar = new TarReader(input);
+				Iterator<Map.Entry<String, byte[]>> images = StreamSupport
+						.stream(Spliterators.spliteratorUnknownSize(tar, Spliterator.ORDERED), false)
+						.filter(entry -> isImage(entry.getKey())).iterator();
+				return new CaptchaSource(images, tar);
+			}
+
+			if (name.endsWith(".zip")) {
+				FileSystem zip = FileSystems.newFileSystem(input, (ClassLoader) null);
+				Path root = zip.getPath("/");
+				Stream<Path> files = Files.walk(root);
+				return new CaptchaSource(images(files, root), () -> {
+					files.close();
+					zip.close();
+				});
+			}
+
+			throw new IOException("Input must be a directory, a zip or a tar archive: " + input);
+		}
+
+		private static Iterator<Map.Entry<String, byte[]>> images(Stream<Path> files, Path root) {
+			return files.filter(file -> Files.isRegularFile(file) && isImage(file.getFileName().toString())).<Map.Entry<String, byte[]>>map(file -> {
+				try {
+					return new AbstractMap.SimpleImmutableEntry<>(root.relativize(file).toString(),
+							Files.readAllBytes(file));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}).iterator();
+		}
+
+		private static boolean isImage(String file) {
+			String name = file.toLowerCase();
+			return name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png") || name.endsWith(".bmp");
+		}
+
+		private Iterator<Map.Entry<String, byte[]>> iterator() {
+			return iterator;
+		}
+
+		@Override
+		public void close() throws IOException {
+			resource.close();
+		}
+	}
+
+}
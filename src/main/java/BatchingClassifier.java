@@ -0,0 +1,337 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Micro-batching dispatcher in front of a classifier.
+ *
+ * Images submitted by concurrent callers are collected in a single queue. A
+ * dispatcher thread flushes them to {@link Classifier#classifyBatch(List)}
+ * (or {@link Classifier#classifyPixels(List)} for normalized characters)
+ * whenever the batch reaches its maximum size or the oldest image has waited
+ * the maximum delay, whichever comes first. Each caller gets a
+ * {@link CompletableFuture} completed with the class of its own image.
+ *
+ * A small delay trades a little latency per character for far fewer (and
+ * larger) model evaluations under concurrent load.
+ */
+public class BatchingClassifier<T> implements Classifier<T>, AutoCloseable {
+
+	private final Classifier<T> classifier;
+	private final int maxBatchSize;
+	private final long maxWaitNanos;
+	private final BlockingQueue<PendingImage<T>> queue = new LinkedBlockingQueue<>();
+	private final Thread dispatcher;
+	private volatile boolean running = true;
+
+	// Metrics
+	private final AtomicLong batchCount = new AtomicLong();
+	private final AtomicLong classifiedCount = new AtomicLong();
+	private final AtomicInteger largestBatchSize = new AtomicInteger();
+	private volatile int lastBatchSize;
+
+	/**
+	 *
+	 * @param classifier Classifier receiving the batches
+	 * @param maxBatchSize Maximum number of images evaluated in a single batch
+	 * @param maxWait Maximum time the oldest queued image waits for a batch to fill
+	 * @param unit Time unit of maxWait
+	 */
+	public BatchingClassifier(Classifier<T> classifier, int maxBatchSize, long maxWait, TimeUnit unit) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be positive: " + maxBatchSize);
+		}
+
+		this.classifier = classifier;
+		this.maxBatchSize = maxBatchSize;
+		this.maxWaitNanos = unit.toNanos(maxWait);
+
+		this.dispatcher = new Thread(this::dispatch, "batching-classifier");
+		this.dispatcher.setDaemon(true);
+		this.dispatcher.start();
+	}
+
+	/**
+	 * Queue an image to be classified in the next batch.
+	 *
+	 * @param imageBytes
+	 * @return future completed with the class of the image
+	 */
+	public CompletableFuture<T> submit(byte[] imageBytes) {
+		return enqueue(new PendingImage<>(imageBytes, null));
+	}
+
+	/**
+	 * Queue a normalized character to be classified in the next batch.
+	 *
+	 * @param character
+	 * @return future completed with the class of the character
+	 */
+	public CompletableFuture<T> submit(CharacterImage character) {
+		return enqueue(new PendingImage<>(null, character));
+	}
+
+	private CompletableFuture<T> enqueue(PendingImage<T> pending) {
+		if (!running) {
+			pending.result.completeExceptionally(new IllegalStateException("Batching classifier is closed"));
+			return pending.result;
+		}
+
+		queue.add(pending);
+
+		// close() may have drained the queue before the image was added
+		if (!running && queue.remove(pending)) {
+			pending.result.completeExceptionally(new IllegalStateException("Batching classifier is closed"));
+		}
+		return pending.result;
+	}
+
+	/**
+	 * Queue several images, which may be classified together with images of
+	 * other callers.
+	 *
+	 * @param imagesBytes
+	 * @return future completed with the classes of all images, in the same order
+	 */
+	public CompletableFuture<List<T>> submitAll(List<byte[]> imagesBytes) {
+		List<CompletableFuture<T>> results = new ArrayList<>(imagesBytes.size());
+		for (byte[] imageBytes : imagesBytes) {
+			results.add(submit(imageBytes));
+		}
+
+		return allOf(results);
+	}
+
+	/**
+	 * Queue several normalized characters, which may be classified together with
+	 * characters of other callers.
+	 *
+	 * @param characters
+	 * @return future completed with the classes of all characters, in the same order
+	 */
+	public CompletableFuture<List<T>> submitAllPixels(List<CharacterImage> characters) {
+		List<CompletableFuture<T>> results = new ArrayList<>(characters.size());
+		for (CharacterImage character : characters) {
+			results.add(submit(character));
+		}
+
+		return allOf(results);
+	}
+
+	private static <T> CompletableFuture<List<T>> allOf(List<CompletableFuture<T>> results) {
+		return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()])).thenApply(done -> {
+			List<T> classes = new ArrayList<>(results.size());
+			for (CompletableFuture<T> result : results) {
+				classes.add(result.join());
+			}
+			return classes;
+		});
+	}
+
+	@Override
+	public T classify(byte[] imageBytes) {
+		return await(submit(imageBytes));
+	}
+
+	@Override
+	public List<T> classifyBatch(List<byte[]> imagesBytes) {
+		return await(submitAll(imagesBytes));
+	}
+
+	@Override
+	public List<T> classifyPixels(List<CharacterImage> characters) {
+		return await(submitAllPixels(characters));
+	}
+
+	@Override
+	public void warmUp() {
+		classifier.warmUp();
+	}
+
+	/**
+	 * Number of images waiting for a batch.
+	 *
+	 * @return
+	 */
+	public int queueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * Number of batches sent to the classifier.
+	 *
+	 * @return
+	 */
+	public long batchCount() {
+		return batchCount.get();
+	}
+
+	/**
+	 * Number of images classified.
+	 *
+	 * @return
+	 */
+	public long classifiedCount() {
+		return classifiedCount.get();
+	}
+
+	/**
+	 * Average number of images per batch.
+	 *
+	 * @return
+	 */
+	public double averageBatchSize() {
+		long batches = batchCount.get();
+		return batches == 0 ? 0 : (double) classifiedCount.get() / batches;
+	}
+
+	/**
+	 * Size of the last batch sent to the classifier.
+	 *
+	 * @return
+	 */
+	public int lastBatchSize() {
+		return lastBatchSize;
+	}
+
+	/**
+	 * Size of the largest batch sent to the classifier.
+	 *
+	 * @return
+	 */
+	public int largestBatchSize() {
+		return largestBatchSize.get();
+	}
+
+	/**
+	 * Stop the dispatcher. Images still queued fail with an
+	 * {@link IllegalStateException}.
+	 */
+	@Override
+	public void close() {
+		running = false;
+		dispatcher.interrupt();
+		try {
+			dispatcher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		PendingImage<T> pending;
+		while ((pending = queue.poll()) != null) {
+			pending.result.completeExceptionally(new IllegalStateException("Batching classifier is closed"));
+		}
+	}
+
+	private void dispatch() {
+		List<PendingImage<T>> batch = new ArrayList<>(maxBatchSize);
+
+		while (running) {
+			try {
+				// Wait for the first image, then give the batch up to maxWait to fill
+				batch.add(queue.take());
+				long deadline = System.nanoTime() + maxWaitNanos;
+
+				while (batch.size() < maxBatchSize) {
+					long remaining = deadline - System.nanoTime();
+					PendingImage<T> next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				// Closing: fail what was already taken from the queue
+				for (PendingImage<T> pending : batch) {
+					pending.result.completeExceptionally(new IllegalStateException("Batching classifier is closed"));
+				}
+				return;
+			}
+
+			try {
+				flush(batch);
+			} catch (Throwable e) {
+				// Keep dispatching: images of this batch not yet completed fail
+				for (PendingImage<T> pending : batch) {
+					pending.result.completeExceptionally(e);
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	private void flush(List<PendingImage<T>> batch) {
+		int size = batch.size();
+		batchCount.incrementAndGet();
+		classifiedCount.addAndGet(size);
+		lastBatchSize = size;
+		largestBatchSize.accumulateAndGet(size, Math::max);
+
+		// Images and normalized characters go to the classifier in separate batches
+		List<PendingImage<T>> images = new ArrayList<>(size);
+		List<PendingImage<T>> characters = new ArrayList<>(size);
+		for (PendingImage<T> pending : batch) {
+			(pending.character == null ? images : characters).add(pending);
+		}
+
+		if (!images.isEmpty()) {
+			List<byte[]> imagesBytes = new ArrayList<>(images.size());
+			for (PendingImage<T> pending : images) {
+				imagesBytes.add(pending.imageBytes);
+			}
+			complete(images, () -> classifier.classifyBatch(imagesBytes));
+		}
+
+		if (!characters.isEmpty()) {
+			List<CharacterImage> characterImages = new ArrayList<>(characters.size());
+			for (PendingImage<T> pending : characters) {
+				characterImages.add(pending.character);
+			}
+			complete(characters, () -> classifier.classifyPixels(characterImages));
+		}
+	}
+
+	private void complete(List<PendingImage<T>> batch, Supplier<List<T>> classification) {
+		try {
+			List<T> classes = classification.get();
+			for (int i = 0; i < batch.size(); i++) {
+				batch.get(i).result.complete(classes.get(i));
+			}
+		} catch (Throwable e) {
+			// Errors too, such as native errors of Tensorflow: the dispatcher must survive them
+			for (PendingImage<T> pending : batch) {
+				pending.result.completeExceptionally(e);
+			}
+		}
+	}
+
+	private static <R> R await(CompletableFuture<R> result) {
+		try {
+			return result.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private static class PendingImage<T> {
+		private final byte[] imageBytes;
+		private final CharacterImage character;
+		private final CompletableFuture<T> result = new CompletableFuture<>();
+
+		private PendingImage(byte[] imageBytes, CharacterImage character) {
+			this.imageBytes = imageBytes;
+			this.character = character;
+		}
+	}
+
+}
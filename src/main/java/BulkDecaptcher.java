@@ -0,0 +1,277 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Decaptcher for large backlogs of captchas.
+ *
+ * Captchas are solved in parallel on a bounded pool of threads, so the OpenCV
+ * processing scales with the number of cores. At most maxInFlight captchas are
+ * submitted at a time: the caller is held back when the pool falls behind
+ * instead of queueing the whole backlog in memory.
+ *
+ * Built with {@link #forModel(float, int, int)}, the characters of all
+ * captchas in flight go through a shared {@link BatchingClassifier}, so the
+ * CNN is evaluated in batches across captchas.
+ */
+public class BulkDecaptcher implements Decaptcher, AutoCloseable {
+
+	private final Decaptcher decaptcher;
+	private final ExecutorService executor;
+	private final int maxInFlight;
+	private final AutoCloseable ownedResource;
+
+	/**
+	 *
+	 * @param decaptcher
+	 *            thread-safe decaptcher solving each captcha
+	 * @param parallelism
+	 *            number of captchas solved at the same time
+	 * @param maxInFlight
+	 *            maximum number of captchas submitted and not yet solved
+	 */
+	public BulkDecaptcher(Decaptcher decaptcher, int parallelism, int maxInFlight) {
+		this(decaptcher, parallelism, maxInFlight, null);
+	}
+
+	private BulkDecaptcher(Decaptcher decaptcher, int parallelism, int maxInFlight, AutoCloseable ownedResource) {
+		if (maxInFlight < parallelism) {
+			throw new IllegalArgumentException("Max in flight (" + maxInFlight
+					+ ") must not be lower than parallelism (" + parallelism + ")");
+		}
+
+		this.decaptcher = decaptcher;
+		this.maxInFlight = maxInFlight;
+		this.ownedResource = ownedResource;
+
+		AtomicInteger threadCount = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+			Thread thread = new Thread(runnable, "bulk-decaptcher-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Bulk decaptcher over the CNN model, with the characters of all captchas in
+	 * flight classified in shared batches.
+	 *
+	 * @param threshold
+	 *            Minimum probability to accept a character as answer of
+	 *            classification.
+	 * @param parallelism
+	 *            number of captchas processed at the same time
+	 * @param maxInFlight
+	 *            maximum number of captchas submitted and not yet solved
+	 * @return
+	 */
+	public static BulkDecaptcher forModel(float threshold, int parallelism, int maxInFlight) {
+		BatchingClassifier<CharacterPrediction> classifier = new BatchingClassifier<>(
+				new CaptchaClassifier(threshold).predictor(), 64, 2, TimeUnit.MILLISECONDS);
+		DLDecaptcher decaptcher = DLDecaptcher.withPredictor(new CaptchaImageProcessor(), classifier);
+		return new BulkDecaptcher(decaptcher, parallelism, maxInFlight, classifier);
+	}
+
+	@Override
+	public String decapcha(byte[] captchaImage) {
+		return decaptcher.decapcha(captchaImage);
+	}
+
+	/**
+	 * Identifies the text of several captchas in parallel.
+	 *
+	 * @return texts in the iteration order of the captcha images
+	 * @throws IllegalStateException
+	 *             if any captcha failed, once all the others are solved
+	 */
+	@Override
+	public <K> Map<K, String> decapchaAll(Map<K, byte[]> captchaImages) {
+		Map<K, String> solved = new ConcurrentHashMap<>();
+		decapchaAll(captchaImages.entrySet().iterator(),
+				(key, captcha) -> solved.put(key, captcha == null ? "" : captcha));
+
+		Map<K, String> captchas = new LinkedHashMap<>();
+		for (K key : captchaImages.keySet()) {
+			captchas.put(key, solved.get(key));
+		}
+		return captchas;
+	}
+
+	/**
+	 * Identifies the text of a stream of captchas in parallel, handing each
+	 * result to the consumer as soon as it is solved. The iterator is consumed
+	 * only as fast as captchas are solved, so it can lazily read a backlog
+	 * larger than memory. Returns when all captchas are solved.
+	 *
+	 * @param captchaImages
+	 *            captcha images by key
+	 * @param onResult
+	 *            called with the key and text of each captcha, from the
+	 *            processing threads
+	 * @throws IllegalStateException
+	 *             if any captcha failed, once all the others are solved
+	 */
+	public <K> void decapchaAll(Iterator<? extends Map.Entry<K, byte[]>> captchaImages, BiConsumer<K, String> onResult) {
+		solveAll(captchaImages, decaptcher::decapcha, onResult);
+	}
+
+	/**
+	 * Apply a solver to a stream of captchas in parallel, with the same
+	 * backpressure as {@link #decapchaAll(Iterator, BiConsumer)}. Lets callers
+	 * collect more than the captcha text, e.g. timings.
+	 *
+	 * A captcha whose solver or consumer throws does not stop the others: once
+	 * all are done, an IllegalStateException naming the failed keys is thrown,
+	 * with the first failure as cause and the next ones suppressed.
+	 *
+	 * @param captchaImages
+	 *            captcha images by key
+	 * @param solver
+	 *            thread-safe function solving a captcha image
+	 * @param onResult
+	 *            called with the key and result of each captcha, from the
+	 *            processing threads
+	 * @throws IllegalStateException
+	 *             if any captcha failed, once all the others are solved
+	 */
+	public <K, R> void solveAll(Iterator<? extends Map.Entry<K, byte[]>> captchaImages, Function<byte[], R> solver,
+			BiConsumer<K, R> onResult) {
+		Queue<Map.Entry<K, Throwable>> failures = new ConcurrentLinkedQueue<>();
+		solveAll(captchaImages, solver, onResult,
+				(key, failure) -> failures.add(new AbstractMap.SimpleImmutableEntry<>(key, failure)));
+		throwIfFailed(failures);
+	}
+
+	/**
+	 * Apply a solver to a stream of captchas in parallel, handing the failure
+	 * of each captcha whose solver or consumer throws to onFailure, so callers
+	 * can report it along the results.
+	 *
+	 * @param captchaImages
+	 *            captcha images by key
+	 * @param solver
+	 *            thread-safe function solving a captcha image
+	 * @param onResult
+	 *            called with the key and result of each captcha, from the
+	 *            processing threads
+	 * @param onFailure
+	 *            called with the key and failure of each captcha not handed
+	 *            to onResult, from the processing threads
+	 * @throws IllegalStateException
+	 *             if onFailure itself threw, once all captchas are done
+	 */
+	public <K, R> void solveAll(Iterator<? extends Map.Entry<K, byte[]>> captchaImages, Function<byte[], R> solver,
+			BiConsumer<K, R> onResult, BiConsumer<K, Throwable> onFailure) {
+		Semaphore inFlight = new Semaphore(maxInFlight);
+
+		// Failures onFailure could not take, so no captcha is silently lost
+		Queue<Map.Entry<K, Throwable>> unreported = new ConcurrentLinkedQueue<>();
+
+		try {
+			while (captchaImages.hasNext()) {
+				Map.Entry<K, byte[]> captchaImage = captchaImages.next();
+				inFlight.acquire();
+
+				try {
+					executor.execute(() -> {
+						K key = captchaImage.getKey();
+						try {
+							onResult.accept(key, solver.apply(captchaImage.getValue()));
+						} catch (Throwable e) {
+							try {
+								onFailure.accept(key, e);
+							} catch (Throwable reportFailure) {
+								reportFailure.addSuppressed(e);
+								unreported.add(new AbstractMap.SimpleImmutableEntry<>(key, reportFailure));
+							}
+						} finally {
+							inFlight.release();
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					inFlight.release();
+					throw new IllegalStateException("Bulk decaptcher is closed", e);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while solving captchas", e);
+		} finally {
+			// Also when the iterator fails, so no result is handed over once the caller moved on
+			awaitAll(inFlight);
+		}
+
+		throwIfFailed(unreported);
+	}
+
+	/**
+	 * Wait for the last captchas submitted.
+	 */
+	private void awaitAll(Semaphore inFlight) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				inFlight.acquire(maxInFlight);
+				break;
+			} catch (InterruptedException e) {
+				// Keep waiting, the tasks still use the caller's consumers
+				interrupted = true;
+			}
+		}
+		inFlight.release(maxInFlight);
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static <K> void throwIfFailed(Queue<Map.Entry<K, Throwable>> failures) {
+		if (failures.isEmpty()) {
+			return;
+		}
+
+		List<K> keys = new ArrayList<>(failures.size());
+		for (Map.Entry<K, Throwable> failure : failures) {
+			keys.add(failure.getKey());
+		}
+		Iterator<Map.Entry<K, Throwable>> iterator = failures.iterator();
+		IllegalStateException exception = new IllegalStateException(
+				keys.size() + " captchas failed: " + keys, iterator.next().getValue());
+		while (iterator.hasNext()) {
+			exception.addSuppressed(iterator.next().getValue());
+		}
+		throw exception;
+	}
+
+	/**
+	 * Decaptcher solving each captcha.
+	 *
+	 * @return
+	 */
+	public Decaptcher decaptcher() {
+		return decaptcher;
+	}
+
+	@Override
+	public void close() throws Exception {
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+		if (ownedResource != null) {
+			ownedResource.close();
+		}
+	}
+
+}
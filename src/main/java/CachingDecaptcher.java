@@ -0,0 +1,259 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decaptcher caching the answers of another decaptcher, keyed by a hash of the
+ * image content. A repeated captcha image is answered without processing it
+ * again nor calling a paid remote service.
+ *
+ * The cache keeps at most maxSize answers, evicting the least recently used
+ * one, and forgets answers older than the time to live. Empty answers are not
+ * cached, so failed captchas are retried.
+ *
+ * Concurrent misses of the same image are solved once: the first one calls the
+ * underlying decaptcher and the others wait for its answer, or its failure.
+ */
+public class CachingDecaptcher implements Decaptcher {
+
+	private final Decaptcher decaptcher;
+	private final int maxSize;
+	private final long timeToLiveNanos;
+	private final LinkedHashMap<ContentKey, CachedAnswer> answers;
+	private final ConcurrentHashMap<ContentKey, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong joins = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 *
+	 * @param decaptcher
+	 *            decaptcher called on cache misses
+	 * @param maxSize
+	 *            maximum number of cached answers
+	 * @param timeToLive
+	 *            time an answer is kept in cache
+	 * @param unit
+	 *            time unit of timeToLive
+	 */
+	public CachingDecaptcher(Decaptcher decaptcher, int maxSize, long timeToLive, TimeUnit unit) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Cache size must be positive: " + maxSize);
+		}
+
+		this.decaptcher = decaptcher;
+		this.maxSize = maxSize;
+		this.timeToLiveNanos = unit.toNanos(timeToLive);
+
+		// Access order makes the eldest entry the least recently used one
+		this.answers = new LinkedHashMap<ContentKey, CachedAnswer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ContentKey, CachedAnswer> eldest) {
+				boolean evict = size() > CachingDecaptcher.this.maxSize;
+				if (evict) {
+					evictions.incrementAndGet();
+				}
+				return evict;
+			}
+		};
+	}
+
+	@Override
+	public String decapcha(byte[] captchaImage) {
+		ContentKey key = new ContentKey(captchaImage);
+
+		String cached = cachedAnswer(key);
+		if (cached != null) {
+			hits.incrementAndGet();
+			return cached;
+		}
+
+		CompletableFuture<String> solving = new CompletableFuture<>();
+		CompletableFuture<String> solvingAlready = inFlight.putIfAbsent(key, solving);
+		if (solvingAlready != null) {
+			joins.incrementAndGet();
+			return await(solvingAlready);
+		}
+
+		try {
+			// Solved and cached since the first look up
+			cached = cachedAnswer(key);
+			if (cached != null) {
+				hits.incrementAndGet();
+				solving.complete(cached);
+				return cached;
+			}
+
+			misses.incrementAndGet();
+			String answer = decaptcher.decapcha(captchaImage);
+
+			// The time to live starts once answered, however long a remote solve took
+			if (answer != null && !answer.isEmpty()) {
+				synchronized (answers) {
+					answers.put(key, new CachedAnswer(answer, System.nanoTime()));
+				}
+			}
+
+			solving.complete(answer);
+			return answer;
+		} catch (RuntimeException | Error e) {
+			solving.completeExceptionally(e);
+			throw e;
+		} finally {
+			// Only once cached, so a later miss finds either the answer or this solve
+			inFlight.remove(key, solving);
+		}
+	}
+
+	/**
+	 * Cached answer of an image, evicting it if expired.
+	 *
+	 * @param key
+	 * @return answer or null if not cached
+	 */
+	private String cachedAnswer(ContentKey key) {
+		synchronized (answers) {
+			CachedAnswer cached = answers.get(key);
+			if (cached == null) {
+				return null;
+			}
+			if (System.nanoTime() - cached.createdAt < timeToLiveNanos) {
+				return cached.answer;
+			}
+			answers.remove(key);
+			evictions.incrementAndGet();
+			return null;
+		}
+	}
+
+	private static String await(CompletableFuture<String> solving) {
+		try {
+			return solving.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Remove all cached answers.
+	 */
+	public void clear() {
+		synchronized (answers) {
+			answers.clear();
+		}
+	}
+
+	/**
+	 * Number of cached answers, including expired ones not yet evicted.
+	 *
+	 * @return
+	 */
+	public int size() {
+		synchronized (answers) {
+			return answers.size();
+		}
+	}
+
+	/**
+	 * Number of captchas answered from cache.
+	 *
+	 * @return
+	 */
+	public long hitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Number of captchas sent to the underlying decaptcher.
+	 *
+	 * @return
+	 */
+	public long missCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Number of captchas answered by waiting for the solve of the same image
+	 * already in progress.
+	 *
+	 * @return
+	 */
+	public long joinCount() {
+		return joins.get();
+	}
+
+	/**
+	 * Number of answers evicted, either because the cache was full or because
+	 * they expired.
+	 *
+	 * @return
+	 */
+	public long evictionCount() {
+		return evictions.get();
+	}
+
+	private static class CachedAnswer {
+		private final String answer;
+		private final long createdAt;
+
+		private CachedAnswer(String answer, long createdAt) {
+			this.answer = answer;
+			this.createdAt = createdAt;
+		}
+	}
+
+	/**
+	 * Key made of the image length and two independent 64-bit hashes of its
+	 * bytes (FNV-1a and a multiplicative hash with a different seed), so
+	 * distinct images practically never share a key and the image itself does
+	 * not need to be kept in memory.
+	 */
+	private static class ContentKey {
+		private final int length;
+		private final long hash1;
+		private final long hash2;
+
+		private ContentKey(byte[] content) {
+			long h1 = 0xcbf29ce484222325L;
+			long h2 = 0x9e3779b97f4a7c15L;
+			for (byte b : content) {
+				h1 = (h1 ^ (b & 0xff)) * 0x100000001b3L;
+				h2 = (h2 + (b & 0xff)) * 0xc6a4a7935bd1e995L;
+				h2 ^= h2 >>> 47;
+			}
+
+			this.length = content.length;
+			this.hash1 = h1;
+			this.hash2 = h2;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (hash1 ^ (hash1 >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ContentKey)) {
+				return false;
+			}
+			ContentKey other = (ContentKey) obj;
+			return length == other.length && hash1 == other.hash1 && hash2 == other.hash2;
+		}
+	}
+
+}
@@ -1,10 +1,10 @@
 
 
-import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.util.stream.Stream;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.opencv.core.Rect;
 import org.tensorflow.Graph;
 import org.tensorflow.Output;
 import org.tensorflow.Session;
@@ -20,111 +20,346 @@ import org.tensorflow.Tensor;
  */
 public class CaptchaClassifier implements Classifier<String> {
 
-	private static  byte[] modelBytes;
-	private static  String[] labels;
+	private static final int HEIGHT = CharacterImage.HEIGHT;
+	private static final int WIDHT = CharacterImage.WIDTH;
+	private static final int CHANNELS = CharacterImage.CHANNELS;
+	private static final float SCALE = 255f;
+	private static final String INPUT_LAYER = "FirstConv2DLayer_input";
+	private static final String OUTPUT_LAYER = "conversor_output_0";
+	
+	// conversor_output_0 only slices the first row of the softmax, so batches are read from the softmax itself
+	private static final String PROBABILITIES_LAYER = "Probabilities/Softmax";
+	
+	// Image normalization ops appended to the model graph
+	private static final String NORMALIZATION_SCOPE = "normalization";
+	private static final String NORMALIZATION_INPUT = NORMALIZATION_SCOPE + "/input";
+	private static final String NORMALIZATION_OUTPUT = NORMALIZATION_SCOPE + "/Div";
+	
+	// Number of most probable labels kept in each prediction
+	public static final int DEFAULT_TOP_K = 3;
+
 	private float threshold;
+	private final ModelRegistry registry;
+	private final int topK;
 	
 	/**
+	 * Creates a classifier backed by the model registry shared by the whole application, which loads
+	 * the model bundled in the classpath on first use.
 	 * 
 	 * @param threshold Minimum probability to accept a character as answer of classification.
 	 */
 	public CaptchaClassifier(float threshold) {
+		this(threshold, ModelRegistry.shared());
+	}
+	
+	/**
+	 * 
+	 * @param threshold Minimum probability to accept a character as answer of classification.
+	 * @param registry Registry of the CNN model, each classification runs on its current version.
+	 */
+	public CaptchaClassifier(float threshold, ModelRegistry registry) {
+		this(threshold, registry, DEFAULT_TOP_K);
+	}
+	
+	/**
+	 * 
+	 * @param threshold Minimum probability to accept a character as answer of classification.
+	 * @param registry Registry of the CNN model, each classification runs on its current version.
+	 * @param topK Number of most probable labels kept in each {@link CharacterPrediction}.
+	 */
+	public CaptchaClassifier(float threshold, ModelRegistry registry, int topK) {
 		super();
+		if (topK < 1) {
+			throw new IllegalArgumentException("Top k must be positive: " + topK);
+		}
 		this.threshold = threshold;
-		
+		this.registry = registry;
+		this.topK = topK;
 	}
 	
-	static {
-		ClassLoader classLoader = CaptchaClassifier.class.getClassLoader();
-		
-		// Read DL Model
-		try {
-			File file = new File(classLoader.getResource("CNN_Model/output_graph.pb").getFile());
-			modelBytes = Files.readAllBytes(file.toPath());
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		
-		// Read labels
-		File file = new File(classLoader.getResource("CNN_Model/labels.txt").getFile());
-		try (Stream<String> lines = Files.lines(file.toPath())) {
-			
-			labels = lines.toArray(size -> new String[size]);
-			
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+	/**
+	 * Creates a new pool of sessions over a CNN model graph, with the normalization ops appended.
+	 * 
+	 * @param graphDef Protobuffer model generated in Python.
+	 * @param config Number of sessions of the pool and threads of each session.
+	 * @return
+	 */
+	public static SessionPool newSessionPool(byte[] graphDef, SessionConfig config) {
+		Graph graph = new Graph();
+		graph.importGraphDef(graphDef);
+		buildNormalization(graph, HEIGHT, WIDHT, SCALE);
+		return new SessionPool(graph, config.poolSize(), config.toConfigProto());
 	}
 
 	/**
-	 * Build graph to normalize image to fit the model trained in Python.
+	 * Build graph to normalize image to fit the model trained in Python and append it to the model graph,
+	 * so it is built only once and shared by every session.
 	 * 
 	 * The model was trained with images scaled to img_shape x img_shape pixels.
 	 * The colors, represented as R, G, B in 1-byte each were converted to float using 1/Scale.
 	 * 
-	 * @param imageBytes
+	 * @param graph
+	 *            graph where the model was imported
 	 * @param height 
 	 * @param widht
 	 * @param scale
-	 * @return
 	 */
-	private Tensor<Float> normalizedImage(byte[] imageBytes, int height, int widht, float scale) {
-		try (Graph g = new Graph()) {
-			GraphBuilder b = new GraphBuilder(g);
+	private static void buildNormalization(Graph graph, int height, int widht, float scale) {
+		GraphBuilder b = new GraphBuilder(graph, NORMALIZATION_SCOPE);
 
-			final Output<String> input = b.constant("input", imageBytes);
-			final Output<Float> output = b.div(b.resizeBilinear(
-					b.expandDims(b.cast(b.decodeJpeg(input, 3), Float.class), b.constant("make_batch", 0)),
-					b.constant("size", new int[] { height, widht })), b.constant("scale", scale));
+		final Output<String> input = b.placeholder("input", String.class);
+		final Output<Float> output = b.div(b.resizeBilinear(
+				b.expandDims(b.cast(b.decodeJpeg(input, 3), Float.class), b.constant("make_batch", 0)),
+				b.constant("size", new int[] { height, widht })), b.constant("scale", scale));
 
-			try (Session s = new Session(g)) {
-				return s.runner().fetch(output.op().name()).run().get(0).expect(Float.class);
-			}
+		if (!output.op().name().equals(NORMALIZATION_OUTPUT)) {
+			throw new IllegalStateException("Unexpected normalization output: " + output.op().name());
+		}
+	}
+
+	/**
+	 * Normalize image by feeding it to the normalization ops of the model graph.
+	 * 
+	 * @param session
+	 * @param imageBytes
+	 * @return
+	 */
+	Tensor<Float> normalizedImage(Session session, byte[] imageBytes) {
+		long start = System.nanoTime();
+		try (Tensor<String> input = Tensor.create(imageBytes, String.class)) {
+			return session.runner().feed(NORMALIZATION_INPUT, input).fetch(NORMALIZATION_OUTPUT).run().get(0)
+					.expect(Float.class);
+		} finally {
+			Metrics.recordSince(PipelineMetrics.Stage.NORMALIZE, start);
 		}
 	}
 
 	@Override
 	public String classify(byte[] imageBytes) {
-		int height = 20;
-		int widht = 20;
-		float scale = 255f;
-		String input_layer = "FirstConv2DLayer_input";
-		String output_layer = "conversor_output_0";
+		return label(predict(imageBytes));
+	}
+
+	@Override
+	public List<String> classifyBatch(List<byte[]> imagesBytes) {
+		return labels(predictBatch(imagesBytes));
+	}
+
+	@Override
+	public List<String> classifyPixels(List<CharacterImage> characters) {
+		return labels(predictPixels(characters));
+	}
+
+	/**
+	 * Build the current model graph and open all its sessions.
+	 */
+	@Override
+	public void warmUp() {
+		registry.run(model -> {
+			model.sessionPool().warmUp();
+			return model;
+		});
+	}
 
-		// Create graph based on Protobuffer model generated in Python
-		try (Graph graph = new Graph(); Session session = new Session(graph)) {
+	/**
+	 * Classify a character image, keeping the probabilities of its most probable labels.
+	 * 
+	 * @param imageBytes
+	 * @return prediction, without bounding box
+	 */
+	public CharacterPrediction predict(byte[] imageBytes) {
 
-			graph.importGraphDef(modelBytes);
+		// Input normalized image in CNN and gets a vector of probabilities as output
+		return registry.run(model -> model.sessionPool().run(session -> {
+			try (Tensor<Float> image = normalizedImage(session, imageBytes);
+					Tensor<?> result = infer(session.runner().feed(INPUT_LAYER, image).fetch(OUTPUT_LAYER))) {
 
-			// Input normalized image in CNN and gets a vector of probabilities as output
-			try (Tensor<Float> image = normalizedImage(imageBytes, height, widht, scale)) {
+				final long[] rshape = result.shape();
+				float[] probabilities = (float[]) result.copyTo(new float[(int) rshape[0]]);
 
-				try (Session s = new Session(graph);
-						Tensor<?> result = s.runner().feed(input_layer, image).fetch(output_layer).run().get(0)) {
+				return prediction(model, probabilities, null);
+			}
+		}));
+	}
 
-					final long[] rshape = result.shape();
-					float[] probabilities = (float[]) result.copyTo(new float[(int) rshape[0]]);
-
-					// Find the index of max probability and max value
-					int maxAt = 0;
-					float maxProb = 0;
-
-					for (int i = 0; i < probabilities.length; i++) {
-						maxProb = probabilities[i] > maxProb
-								? probabilities[i]
-								: maxProb;
-						maxAt = probabilities[i] > probabilities[maxAt]
-								? i
-								: maxAt;
-					}
+	/**
+	 * Classify all characters of a captcha in a single forward pass. The normalized images are stacked
+	 * into one batch and the softmax layer is fetched for all of them at once.
+	 * 
+	 * @param imagesBytes
+	 * @return prediction of each image, without bounding box
+	 */
+	public List<CharacterPrediction> predictBatch(List<byte[]> imagesBytes) {
+		int batchSize = imagesBytes.size();
+		if (batchSize == 0) {
+			return new ArrayList<>();
+		}
 
-					if (maxProb > threshold) {
-						return labels[maxAt];
+		// Stack normalized images in a single [batch, height, widht, channels] input
+		return registry.run(model -> {
+			FloatBuffer batch = FloatBuffer.allocate(batchSize * CharacterImage.SIZE);
+			model.sessionPool().run(session -> {
+				for (byte[] imageBytes : imagesBytes) {
+					try (Tensor<Float> image = normalizedImage(session, imageBytes)) {
+						image.writeTo(batch);
 					}
 				}
+				return batch;
+			});
+			batch.flip();
+
+			return predictNormalized(model, batch, new Rect[batchSize]);
+		});
+	}
+
+	/**
+	 * Classify characters already normalized by the image processor, feeding their pixels straight into
+	 * the model in a single forward pass.
+	 * 
+	 * @param characters
+	 * @return prediction of each character, with its bounding box
+	 */
+	public List<CharacterPrediction> predictPixels(List<CharacterImage> characters) {
+		int batchSize = characters.size();
+		if (batchSize == 0) {
+			return new ArrayList<>();
+		}
+
+		// Tensor.create copies the buffer, a heap one is cheaper to allocate and free
+		FloatBuffer batch = FloatBuffer.allocate(batchSize * CharacterImage.SIZE);
+		Rect[] boundingBoxes = new Rect[batchSize];
+		for (int i = 0; i < batchSize; i++) {
+			batch.put(characters.get(i).pixels());
+			boundingBoxes[i] = characters.get(i).boundingBox();
+		}
+		batch.flip();
+
+		return registry.run(model -> predictNormalized(model, batch, boundingBoxes));
+	}
+
+	/**
+	 * Classify characters whose pixels are already stacked in a single buffer, in [batch, height, widht,
+	 * channels] order, e.g. by {@link FusedDecaptcher}.
+	 * 
+	 * @param batch pixels of all characters, positioned at the first value
+	 * @param boundingBoxes bounding box of each character
+	 * @return prediction of each character
+	 */
+	List<CharacterPrediction> predictStacked(FloatBuffer batch, Rect[] boundingBoxes) {
+		if (boundingBoxes.length == 0) {
+			return new ArrayList<>();
+		}
+		return registry.run(model -> predictNormalized(model, batch, boundingBoxes));
+	}
+
+	/**
+	 * View of this classifier returning full predictions instead of labels, e.g. to be put behind a
+	 * {@link BatchingClassifier} and given to {@link DLDecaptcher#withPredictor(CaptchaImageProcessor, Classifier)}.
+	 * 
+	 * @return
+	 */
+	public Classifier<CharacterPrediction> predictor() {
+		return new Classifier<CharacterPrediction>() {
+			@Override
+			public CharacterPrediction classify(byte[] imageBytes) {
+				return predict(imageBytes);
+			}
+
+			@Override
+			public List<CharacterPrediction> classifyBatch(List<byte[]> imagesBytes) {
+				return predictBatch(imagesBytes);
 			}
+
+			@Override
+			public List<CharacterPrediction> classifyPixels(List<CharacterImage> characters) {
+				return predictPixels(characters);
+			}
+
+			@Override
+			public void warmUp() {
+				CaptchaClassifier.this.warmUp();
+			}
+		};
+	}
+
+	/**
+	 * Run a batch of normalized images through the CNN.
+	 * 
+	 * @param model
+	 * @param batch
+	 *            pixels of all images in [batch, height, widht, channels] order
+	 * @param boundingBoxes
+	 *            bounding box of each image, or null elements if unknown
+	 * @return prediction of each image
+	 */
+	private List<CharacterPrediction> predictNormalized(CnnModel model, FloatBuffer batch, Rect[] boundingBoxes) {
+		int batchSize = boundingBoxes.length;
+		try (Tensor<Float> images = Tensor.create(new long[] { batchSize, HEIGHT, WIDHT, CHANNELS }, batch)) {
+
+			return model.sessionPool().run(session -> {
+				try (Tensor<?> result = infer(session.runner().feed(INPUT_LAYER, images).fetch(PROBABILITIES_LAYER))) {
+
+					final long[] rshape = result.shape();
+					float[][] probabilities = (float[][]) result.copyTo(new float[(int) rshape[0]][(int) rshape[1]]);
+
+					List<CharacterPrediction> predictions = new ArrayList<>(batchSize);
+					for (int i = 0; i < batchSize; i++) {
+						predictions.add(prediction(model, probabilities[i], boundingBoxes[i]));
+					}
+					return predictions;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Run the forward pass of the CNN, recording its latency.
+	 * 
+	 * @param runner
+	 *            runner already fed and with a single fetch
+	 * @return fetched tensor
+	 */
+	private static Tensor<?> infer(Session.Runner runner) {
+		long start = System.nanoTime();
+		try {
+			return runner.run().get(0);
+		} finally {
+			Metrics.recordSince(PipelineMetrics.Stage.INFERENCE, start);
+		}
+	}
+
+	/**
+	 * Prediction of a character from the output of the model.
+	 * 
+	 * @param model
+	 * @param probabilities
+	 * @param boundingBox
+	 * @return prediction, accepted if max probability is above threshold
+	 */
+	private CharacterPrediction prediction(CnnModel model, float[] probabilities, Rect boundingBox) {
+		CharacterPrediction prediction = CharacterPrediction.fromProbabilities(probabilities, model::label, topK,
+				threshold, boundingBox);
+		if (!prediction.isAccepted()) {
+			Metrics.increment(PipelineMetrics.Counter.REJECTED_CHARACTERS);
+		}
+		return prediction;
+	}
+
+	/**
+	 * Label of a prediction.
+	 * 
+	 * @param prediction
+	 * @return label or null if max probability is below threshold
+	 */
+	private static String label(CharacterPrediction prediction) {
+		return prediction.isAccepted() ? prediction.label() : null;
+	}
+
+	private static List<String> labels(List<CharacterPrediction> predictions) {
+		List<String> classifiedChars = new ArrayList<>(predictions.size());
+		for (CharacterPrediction prediction : predictions) {
+			classifiedChars.add(label(prediction));
 		}
-		return null;
+		return classifiedChars;
 	}
 
 }
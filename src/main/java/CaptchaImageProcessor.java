@@ -1,4 +1,5 @@
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -6,9 +7,15 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
@@ -23,16 +30,122 @@ import org.opencv.imgproc.Imgproc;
 
 /**
  * Process captcha image to fit the CNN Model trained in Python using OpenCV.
+ * Instances hold only their configuration and can be shared between threads.
  * 
  * @author gmarinelli
  *
  */
 public class CaptchaImageProcessor {
 
-	public CaptchaImageProcessor() {
+	// Upscale factor used to threshold the captcha in the original Python implementation
+	public static final double DEFAULT_SCALE = 5.0;
+
+	// A rectangle this many times wider than a typical character is split
+	private static final double MAX_WIDTH_RATIO = 1.6;
+
+	// Smallest kernel of the noise removal, whatever the scale
+	private static final int MIN_MORPH_SIZE = 3;
+
+	private static final ThreadLocal<JpegScratch> JPEG_SCRATCH = ThreadLocal.withInitial(JpegScratch::new);
+	private static final ThreadLocal<ConnectedComponents> COMPONENTS = ThreadLocal.withInitial(ConnectedComponents::new);
+
+	/**
+	 * How characters are found in the thresholded image.
+	 */
+	public enum Segmentation {
+		/**
+		 * Bounding rectangles of the contours found with findContours and
+		 * RETR_TREE, holes included, as in the original Python implementation.
+		 */
+		CONTOURS,
+		/**
+		 * Bounding rectangles of the 8-connected components, found in a single
+		 * pass by {@link ConnectedComponents}.
+		 */
+		CONNECTED_COMPONENTS
+	}
+
+	private final double scale;
+	private final boolean meanBackgroundCheck;
+	private final int expectedCharacters;
+	private final Segmentation segmentation;
+
+	// Load OpenCV native library once per JVM
+	static {
 		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
 	}
 
+	/**
+	 * Processor matching the original Python implementation: thresholding on a 5x
+	 * upscaled image and background check by K-means.
+	 */
+	public CaptchaImageProcessor() {
+		this(DEFAULT_SCALE, false);
+	}
+
+	/**
+	 * 
+	 * @param scale
+	 *            upscale factor applied before thresholding. 1.0 thresholds the
+	 *            image at its native resolution. Blur, border and morphology
+	 *            kernels are sized proportionally to it.
+	 * @param meanBackgroundCheck
+	 *            check the background color with a single mean over the
+	 *            thresholded grayscale image instead of K-means over a 3-channel
+	 *            float copy of it
+	 */
+	public CaptchaImageProcessor(double scale, boolean meanBackgroundCheck) {
+		this(scale, meanBackgroundCheck, 0);
+	}
+
+	/**
+	 * 
+	 * @param scale
+	 *            upscale factor applied before thresholding
+	 * @param meanBackgroundCheck
+	 *            check the background color by mean instead of K-means
+	 * @param expectedCharacters
+	 *            number of characters of a captcha, 0 if it varies. When set,
+	 *            the widest rectangles are split while too few characters are
+	 *            found, and the smallest ones dropped while too many are.
+	 */
+	public CaptchaImageProcessor(double scale, boolean meanBackgroundCheck, int expectedCharacters) {
+		this(scale, meanBackgroundCheck, expectedCharacters, Segmentation.CONTOURS);
+	}
+
+	/**
+	 * 
+	 * @param scale
+	 *            upscale factor applied before thresholding
+	 * @param meanBackgroundCheck
+	 *            check the background color by mean instead of K-means
+	 * @param expectedCharacters
+	 *            number of characters of a captcha, 0 if it varies
+	 * @param segmentation
+	 *            how characters are found in the thresholded image
+	 */
+	public CaptchaImageProcessor(double scale, boolean meanBackgroundCheck, int expectedCharacters,
+			Segmentation segmentation) {
+		if (expectedCharacters < 0) {
+			throw new IllegalArgumentException("Expected characters must not be negative: " + expectedCharacters);
+		}
+		this.scale = scale;
+		this.meanBackgroundCheck = meanBackgroundCheck;
+		this.expectedCharacters = expectedCharacters;
+		this.segmentation = segmentation;
+	}
+
+	/**
+	 * Fast processor: thresholding at native resolution and background check by
+	 * mean. Blur and border are scaled down with the image, and noise is removed
+	 * with the smallest 3x3 kernel.
+	 * 
+	 * @return
+	 */
+	public static CaptchaImageProcessor fastProcessor() {
+		return new CaptchaImageProcessor(1.0, true);
+	}
+
 	/**
 	 * Save an image from byte[]
 	 * 
@@ -55,6 +168,10 @@ public class CaptchaImageProcessor {
 	/**
 	 * Convert Mat to byte[].
 	 * 
+	 * The pixels, the BufferedImage, the JPEG writer and its output streams are
+	 * buffers of the calling thread, reused from one character to the next: only
+	 * the returned array is allocated.
+	 * 
 	 * @param matrix
 	 * @return Mat converted to byte[]
 	 * @throws IOException
@@ -62,14 +179,11 @@ public class CaptchaImageProcessor {
 	public static byte[] mat2byteArray(Mat matrix) throws IOException {
 
 		// http://answers.opencv.org/question/10344/opencv-java-load-image-to-gui/
+		JpegScratch scratch = JPEG_SCRATCH.get();
 		int cols = matrix.cols();
 		int rows = matrix.rows();
-		int elemSize = (int) matrix.elemSize();
-		byte[] data = new byte[cols * rows * elemSize];
 		int type;
 
-		matrix.get(0, 0, data);
-
 		switch (matrix.channels()) {
 
 		case 1:
@@ -78,28 +192,26 @@ public class CaptchaImageProcessor {
 
 		case 3:
 			type = BufferedImage.TYPE_3BYTE_BGR;
-			byte b;
-			for (int i = 0; i < data.length; i = i + 3) {
-				b = data[i];
-				data[i] = data[i + 2];
-				data[i + 2] = b;
-			}
+			// Channels swapped natively, as the Java loop did before
+			Imgproc.cvtColor(matrix, scratch.swapped, Imgproc.COLOR_BGR2RGB);
+			matrix = scratch.swapped;
 			break;
 
 		default:
 			return null;
 		}
 
-		BufferedImage image = new BufferedImage(cols, rows, type);
-		image.getRaster().setDataElements(0, 0, cols, rows, data);
+		byte[] data = scratch.pixels(cols * rows * (int) matrix.elemSize());
+		matrix.get(0, 0, data);
 
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		try {
-			ImageIO.write(image, "jpg", baos);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+			return scratch.encode(data, cols, rows, type);
+		} catch (IOException | RuntimeException e) {
+			// The writer may be left half way through an image
+			scratch.release();
+			JPEG_SCRATCH.remove();
+			throw e;
 		}
-		return baos.toByteArray();
 
 	}
 
@@ -110,7 +222,12 @@ public class CaptchaImageProcessor {
 	 * @return byte[] converted
 	 */
 	public static Mat byteArray2Mat(byte[] byteArray) {
-		return Highgui.imdecode(new MatOfByte(byteArray), Highgui.CV_LOAD_IMAGE_UNCHANGED);
+		MatOfByte buffer = new MatOfByte(byteArray);
+		try {
+			return Highgui.imdecode(buffer, Highgui.CV_LOAD_IMAGE_UNCHANGED);
+		} finally {
+			buffer.release();
+		}
 	}
 
 	/**
@@ -127,6 +244,7 @@ public class CaptchaImageProcessor {
 		// Convert list to float 32
 		Mat reshaped_image32f = new Mat();
 		reshaped_image.convertTo(reshaped_image32f, CvType.CV_32F);
+		reshaped_image.release();
 		return reshaped_image32f;
 	}
 
@@ -141,23 +259,24 @@ public class CaptchaImageProcessor {
 	 */
 	private boolean hasBlackBackgroud(Mat image) {
 
-		Imgproc.cvtColor(image, image, Imgproc.COLOR_GRAY2BGR);
-		Mat image32F = convertMatTo32F(image);
-		
-		
+		double centerColor;
+		try (MatScope scope = new MatScope()) {
+			Imgproc.cvtColor(image, image, Imgproc.COLOR_GRAY2BGR);
+			Mat image32F = scope.add(convertMatTo32F(image));
 
-		Mat labels = new Mat();
-		TermCriteria criteria = new TermCriteria(TermCriteria.EPS + TermCriteria.COUNT, 50, 0.1);
-		Mat centers = new Mat();
-		int clusterCount = 1;
-		int attempts = 1;
+			Mat labels = scope.newMat();
+			TermCriteria criteria = new TermCriteria(TermCriteria.EPS + TermCriteria.COUNT, 50, 0.1);
+			Mat centers = scope.newMat();
+			int clusterCount = 1;
+			int attempts = 1;
 
-		// Cluster the pixel intensities
-		Core.kmeans(image32F, clusterCount, labels, criteria, attempts, Core.KMEANS_PP_CENTERS, centers);
+			// Cluster the pixel intensities
+			Core.kmeans(image32F, clusterCount, labels, criteria, attempts, Core.KMEANS_PP_CENTERS, centers);
 
-		// Get center color. We only need to look for 1-d because our image is black and
-		// white
-		double centerColor = centers.get(0, 0)[0];
+			// Get center color. We only need to look for 1-d because our image is black and
+			// white
+			centerColor = centers.get(0, 0)[0];
+		}
 
 		if (centerColor < 100) {
 			return true;
@@ -166,6 +285,30 @@ public class CaptchaImageProcessor {
 		return false;
 	}
 
+	/**
+	 * Verify if a thresholded grayscale image has a black or white background
+	 * with a single pass over its pixels. For a single cluster, K-means center is
+	 * just the mean color, so the result is the same as
+	 * {@link #hasBlackBackgroud(Mat)} without its float conversion.
+	 * 
+	 * @param image
+	 *            1-channel image
+	 * @return boolean specifying if background is black (true) or white (false)
+	 */
+	private boolean hasBlackBackgroudByMean(Mat image) {
+		return Core.mean(image).val[0] < 100;
+	}
+
+	/**
+	 * Smallest odd kernel size not below the given size.
+	 * 
+	 * @param size
+	 * @return
+	 */
+	private static int oddKernelSize(double size) {
+		return 2 * (int) Math.ceil((size - 1) / 2) + 1;
+	}
+
 	/**
 	 * Invert colors of Mat
 	 * 
@@ -181,6 +324,7 @@ public class CaptchaImageProcessor {
 		// Invert
 		Mat invertcolormatrix = new Mat(copyMat.rows(), copyMat.cols(), copyMat.type(), new Scalar(255, 255, 255));
 		Core.subtract(invertcolormatrix, copyMat, copyMat);
+		invertcolormatrix.release();
 
 		return copyMat;
 	}
@@ -191,26 +335,41 @@ public class CaptchaImageProcessor {
 	 * result. Based on Python implementation.
 	 * 
 	 * @param imageMat
-	 *            captcha image in Mat format
-	 * @return Thresholded image
+	 *            captcha image in Mat format, changed in place
+	 * @return Thresholded image, to be released by the caller
 	 * @throws IOException
 	 */
-	private Mat thresholdCaptchaImage(Mat imageMat) throws IOException {
+	Mat thresholdCaptchaImage(Mat imageMat) throws IOException {
+		try (MatScope scope = new MatScope()) {
+			return scope.keep(thresholdCaptchaImage(imageMat, scope));
+		}
+	}
+
+	private Mat thresholdCaptchaImage(Mat imageMat, MatScope scope) throws IOException {
 		
 		// Convert image to grayscale and resize for a better result
 		Size originalImageSize = imageMat.size();
-		Imgproc.resize(imageMat, imageMat, new Size(0, 0), 5.0, 5.0, Imgproc.INTER_CUBIC);
+		if (scale != 1.0) {
+			Imgproc.resize(imageMat, imageMat, new Size(0, 0), scale, scale, Imgproc.INTER_CUBIC);
+		}
 		Imgproc.cvtColor(imageMat, imageMat, Imgproc.COLOR_BGR2GRAY);
-		Imgproc.copyMakeBorder(imageMat, imageMat, 8, 8, 8, 8, Imgproc.BORDER_REPLICATE);
+
+		// Kernels were tuned for the 5x upscaled image
+		double kernelScale = scale / DEFAULT_SCALE;
+		int border = (int) Math.round(8 * kernelScale);
+		Imgproc.copyMakeBorder(imageMat, imageMat, border, border, border, border, Imgproc.BORDER_REPLICATE);
 
 		// Gaussian filter and Otsu's thresholding
-		Mat imageBlur = new Mat();
-		Mat imageThresh = new Mat();
-		Imgproc.GaussianBlur(imageMat, imageBlur, new Size(7, 7), 0);
+		Mat imageBlur = scope.newMat();
+		Mat imageThresh = scope.newMat();
+		int blurSize = oddKernelSize(7 * kernelScale);
+		Imgproc.GaussianBlur(imageMat, imageBlur, new Size(blurSize, blurSize), 0);
 		Imgproc.threshold(imageBlur, imageThresh, 0, 255, Imgproc.THRESH_BINARY + Imgproc.THRESH_OTSU);
 
-		// Erode, dilate and closing to remove noise
-		Mat kernel = Mat.eye(new Size(5, 5), CvType.CV_8U);
+		// Erode, dilate and closing to remove noise; a 1x1 kernel would do nothing, so
+		// at low scales the kernel stays 3x3
+		int morphSize = Math.max(MIN_MORPH_SIZE, oddKernelSize(5 * kernelScale));
+		Mat kernel = scope.add(Mat.eye(new Size(morphSize, morphSize), CvType.CV_8U));
 		Imgproc.erode(imageThresh, imageThresh, kernel);
 		Imgproc.dilate(imageThresh, imageThresh, kernel);
 		Imgproc.morphologyEx(imageThresh, imageThresh, Imgproc.MORPH_CLOSE, kernel);
@@ -219,7 +378,10 @@ public class CaptchaImageProcessor {
 		Imgproc.resize(imageThresh, imageThresh, originalImageSize);
 
 		// Invert color if image has black backgroud (more suitable to ML algorithm)
-		if (hasBlackBackgroud(imageThresh)) {
+		boolean blackBackground = meanBackgroundCheck
+				? hasBlackBackgroudByMean(imageThresh)
+				: hasBlackBackgroud(imageThresh);
+		if (blackBackground) {
 			Core.bitwise_not(imageThresh, imageThresh);
 
 		}
@@ -228,8 +390,10 @@ public class CaptchaImageProcessor {
 	}
 
 	/**
-	 * Segment a thresholded captcha image using contours method. Find the bounding
-	 * rectangle of each contour and crop the image according.
+	 * Find the bounding rectangle of each character of a thresholded captcha image
+	 * using contours or connected components, see {@link Segmentation}. Nested and overlapping rectangles are merged and
+	 * rectangles of merged characters are split, see
+	 * {@link #recoverCharacterRects(List, boolean, Mat, double)}.
 	 * 
 	 * @param imageMat
 	 *            thresholded image
@@ -237,41 +401,277 @@ public class CaptchaImageProcessor {
 	 *            minimum height of bouding rectangle
 	 * @param minWidth
 	 *            minimum widht of bouding rectangle
-	 * @return Arraylist containing the segmented characters.
+	 * @return bounding rectangles sorted by x-axis coordinate
 	 */
-	private ArrayList<byte[]> segmentCaptchaImage(Mat imageMat, double minHeight, double minWidth) {
+	List<Rect> findCharacterRects(Mat imageMat, double minHeight, double minWidth) {
 
-		// Find contours in negative image to avoid finding image borders;
-		Mat invImageMat = new Mat();
-		Core.bitwise_not(imageMat, invImageMat);
-		Imgproc.cvtColor(invImageMat, invImageMat, Imgproc.COLOR_RGB2GRAY);
-		List<MatOfPoint> contours = new ArrayList<>();
-		Mat hierarchy = new Mat();
-		Imgproc.findContours(invImageMat, contours, hierarchy, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE);
-
-		// Find bounding rectangles based on contours
 		List<Rect> boundingRectangles = new ArrayList<>();
 
-		for (int i = 0; i < contours.size(); i++) {
-			Rect rect = Imgproc.boundingRect(contours.get(i));
+		try (MatScope scope = new MatScope()) {
+
+			// Find contours in negative image to avoid finding image borders;
+			Mat invImageMat = scope.newMat();
+			Core.bitwise_not(imageMat, invImageMat);
+			if (invImageMat.channels() == 3) {
+				Imgproc.cvtColor(invImageMat, invImageMat, Imgproc.COLOR_RGB2GRAY);
+			}
+
+			Mat foreground = invImageMat;
+			boolean sorted = segmentation == Segmentation.CONNECTED_COMPONENTS;
+			if (sorted) {
+				boundingRectangles = COMPONENTS.get().boundingRects(invImageMat, minHeight, minWidth);
+			} else {
+				// findContours changes its input, keep the characters for the projection profiles
+				foreground = scope.newMat();
+				invImageMat.copyTo(foreground);
+
+				List<MatOfPoint> contours = new ArrayList<>();
+				Mat hierarchy = scope.newMat();
+				Imgproc.findContours(invImageMat, contours, hierarchy, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE);
+
+				// Find bounding rectangles based on contours
+				for (int i = 0; i < contours.size(); i++) {
+					Rect rect = Imgproc.boundingRect(scope.add(contours.get(i)));
+
+					// Save only rectangles in ROI
+					if (rect.height > minHeight && rect.width > minWidth) {
+						boundingRectangles.add(rect);
+					}
+				}
+			}
+
+			boundingRectangles = recoverCharacterRects(boundingRectangles, sorted, foreground, minWidth);
+		}
+
+		return boundingRectangles;
+	}
+
+	/**
+	 * Turn the contour rectangles into one rectangle per character:
+	 * <ul>
+	 * <li>nested and overlapping rectangles, such as the holes of a 0 or the
+	 * parts of a broken character, are merged;</li>
+	 * <li>rectangles much wider than a typical character, usually touching
+	 * characters, are split at the columns with fewest character pixels;</li>
+	 * <li>if the expected number of characters is set, the widest rectangles
+	 * are split in two while too few are found and the smallest ones, usually
+	 * noise, dropped while too many are.</li>
+	 * </ul>
+	 * 
+	 * @param rects
+	 *            contour rectangles
+	 * @param sorted
+	 *            whether rects are already sorted by x-axis coordinate, e.g.
+	 *            connected components
+	 * @param foreground
+	 *            1-channel image with characters in white
+	 * @param minWidth
+	 *            minimum widht of bouding rectangle
+	 * @return character rectangles sorted by x-axis coordinate
+	 */
+	private List<Rect> recoverCharacterRects(List<Rect> rects, boolean sorted, Mat foreground, double minWidth) {
+
+		List<Rect> characters = mergeOverlappingRects(rects, sorted);
+		if (characters.isEmpty()) {
+			return characters;
+		}
+
+		// Merges and splits may change the order, most captchas need neither
+		boolean changed = characters.size() != rects.size();
+
+		// Split rectangles holding several characters
+		int typicalWidth = medianWidth(characters);
+		List<Rect> splitCharacters = new ArrayList<>(characters.size());
+		for (Rect rect : characters) {
+			int parts = (int) Math.round((double) rect.width / typicalWidth);
+			if (rect.width > MAX_WIDTH_RATIO * typicalWidth && parts > 1) {
+				splitCharacters.addAll(splitRect(rect, parts, foreground));
+				changed = true;
+			} else {
+				splitCharacters.add(rect);
+			}
+		}
+		characters = splitCharacters;
+
+		if (expectedCharacters > 0) {
+			while (characters.size() < expectedCharacters) {
+				int widest = 0;
+				for (int i = 1; i < characters.size(); i++) {
+					widest = characters.get(i).width > characters.get(widest).width ? i : widest;
+				}
+				Rect rect = characters.get(widest);
+				if (rect.width <= 2 * (minWidth + 1)) {
+					break;
+				}
+				characters.remove(widest);
+				characters.addAll(widest, splitRect(rect, 2, foreground));
+				changed = true;
+			}
+
+			while (characters.size() > expectedCharacters) {
+				int smallest = 0;
+				for (int i = 1; i < characters.size(); i++) {
+					smallest = characters.get(i).area() < characters.get(smallest).area() ? i : smallest;
+				}
+				characters.remove(smallest);
+			}
+		}
+
+		if (changed) {
+			Collections.sort(characters, new RectComparator());
+		}
+		return characters;
+	}
+
+	/**
+	 * Merge rectangles overlapping horizontally by at least half the width of
+	 * the narrowest one, which includes nested rectangles.
+	 * 
+	 * @param rects
+	 * @param sorted
+	 *            whether rects are already sorted by x-axis coordinate
+	 * @return merged rectangles sorted by x-axis coordinate
+	 */
+	private static List<Rect> mergeOverlappingRects(List<Rect> rects, boolean sorted) {
+
+		if (!sorted) {
+			rects = new ArrayList<>(rects);
+			Collections.sort(rects, new RectComparator());
+		}
+
+		List<Rect> merged = new ArrayList<>(rects.size());
+		for (Rect rect : rects) {
+			if (!merged.isEmpty()) {
+				Rect last = merged.get(merged.size() - 1);
+				int overlap = Math.min(last.x + last.width, rect.x + rect.width) - Math.max(last.x, rect.x);
+				if (2 * overlap >= Math.min(last.width, rect.width)) {
+					int x = Math.min(last.x, rect.x);
+					int y = Math.min(last.y, rect.y);
+					int right = Math.max(last.x + last.width, rect.x + rect.width);
+					int bottom = Math.max(last.y + last.height, rect.y + rect.height);
+					merged.set(merged.size() - 1, new Rect(x, y, right - x, bottom - y));
+					continue;
+				}
+			}
+			merged.add(rect);
+		}
+		return merged;
+	}
+
+	private static int medianWidth(List<Rect> rects) {
+		int[] widths = new int[rects.size()];
+		for (int i = 0; i < widths.length; i++) {
+			widths[i] = rects.get(i).width;
+		}
+		Arrays.sort(widths);
+		return Math.max(1, widths[widths.length / 2]);
+	}
 
-			// Save only rectangles in ROI
-			if (rect.height > minHeight && rect.width > minWidth) {
-				boundingRectangles.add(rect);
+	/**
+	 * Split a rectangle in parts of about the same width, cutting at the column
+	 * with fewest character pixels (vertical projection profile) near each
+	 * even cut. Each part is then cropped to the rows holding character pixels.
+	 * 
+	 * @param rect
+	 * @param parts
+	 * @param foreground
+	 *            1-channel image with characters in white
+	 * @return parts sorted by x-axis coordinate
+	 */
+	private static List<Rect> splitRect(Rect rect, int parts, Mat foreground) {
+
+		int[] columns = projectionProfile(foreground, rect, 0);
+		int radius = Math.max(1, rect.width / (4 * parts));
+
+		List<Rect> pieces = new ArrayList<>(parts);
+		int start = 0;
+		for (int part = 1; part < parts; part++) {
+			int evenCut = rect.width * part / parts;
+			int cut = Math.max(start + 1, evenCut);
+			for (int column = Math.max(start + 1, evenCut - radius); column <= Math.min(rect.width - 1,
+					evenCut + radius); column++) {
+				cut = columns[column] < columns[cut] ? column : cut;
 			}
+			pieces.add(cropRows(new Rect(rect.x + start, rect.y, cut - start, rect.height), foreground));
+			start = cut;
+		}
+		pieces.add(cropRows(new Rect(rect.x + start, rect.y, rect.width - start, rect.height), foreground));
+
+		return pieces;
+	}
+
+	/**
+	 * Crop a rectangle to its first and last rows holding character pixels.
+	 * 
+	 * @param rect
+	 * @param foreground
+	 * @return
+	 */
+	private static Rect cropRows(Rect rect, Mat foreground) {
+		int[] rows = projectionProfile(foreground, rect, 1);
+		int top = 0;
+		int bottom = rows.length - 1;
+		while (top < bottom && rows[top] == 0) {
+			top++;
+		}
+		while (bottom > top && rows[bottom] == 0) {
+			bottom--;
 		}
+		return new Rect(rect.x, rect.y + top, rect.width, bottom - top + 1);
+	}
+
+	/**
+	 * Sum of the pixels of a rectangle along each column (dimension 0) or row
+	 * (dimension 1).
+	 * 
+	 * @param image
+	 *            1-channel image
+	 * @param rect
+	 * @param dimension
+	 * @return
+	 */
+	private static int[] projectionProfile(Mat image, Rect rect, int dimension) {
+		int[] profile = new int[dimension == 0 ? rect.width : rect.height];
+		try (MatScope scope = new MatScope()) {
+			Mat region = scope.add(image.submat(rect));
+			Mat sums = scope.newMat();
+			Core.reduce(region, sums, dimension, Core.REDUCE_SUM, CvType.CV_32S);
+			sums.get(0, 0, profile);
+		}
+		return profile;
+	}
 
-		// Sort rectangles by x-axis coordinate and crop Mat based on it
-		Collections.sort(boundingRectangles, new RectComparator());
+	/**
+	 * Segment a thresholded captcha image using contours method. Find the bounding
+	 * rectangle of each contour and crop the image according.
+	 * 
+	 * @param imageMat
+	 *            thresholded image
+	 * @param minHeight
+	 *            minimum height of bouding rectangle
+	 * @param minWidth
+	 *            minimum widht of bouding rectangle
+	 * @return Arraylist containing the segmented characters.
+	 */
+	ArrayList<byte[]> segmentCaptchaImage(Mat imageMat, double minHeight, double minWidth) {
+
+		long start = System.nanoTime();
+		List<Rect> boundingRectangles = findCharacterRects(imageMat, minHeight, minWidth);
+		Metrics.recordSince(PipelineMetrics.Stage.SEGMENT, start);
 
+		// Crop Mat based on sorted rectangles
 		ArrayList<byte[]> segmentedChars = new ArrayList<>();
 		for (int i = 0; i < boundingRectangles.size(); i++) {
 
+			start = System.nanoTime();
+			Mat croppedRectMat = imageMat.submat(boundingRectangles.get(i));
 			try {
-				Mat croppedRectMat = imageMat.submat(boundingRectangles.get(i));
 				segmentedChars.add(mat2byteArray(croppedRectMat));
+				Metrics.recordSince(PipelineMetrics.Stage.ENCODE, start);
 			} catch (IOException e) {
 				e.printStackTrace();
+			} finally {
+				croppedRectMat.release();
 			}
 
 		}
@@ -279,6 +679,66 @@ public class CaptchaImageProcessor {
 		return segmentedChars;
 	}
 
+	/**
+	 * Segment a thresholded captcha image keeping each character as raw pixels,
+	 * already resized and scaled to the input of the CNN model.
+	 * 
+	 * @param imageMat
+	 *            thresholded image
+	 * @param minHeight
+	 *            minimum height of bouding rectangle
+	 * @param minWidth
+	 *            minimum widht of bouding rectangle
+	 * @return List containing the segmented characters.
+	 */
+	List<CharacterImage> segmentCaptchaPixels(Mat imageMat, double minHeight, double minWidth) {
+
+		long start = System.nanoTime();
+		List<Rect> boundingRectangles = findCharacterRects(imageMat, minHeight, minWidth);
+		Metrics.recordSince(PipelineMetrics.Stage.SEGMENT, start);
+
+		List<CharacterImage> segmentedChars = new ArrayList<>(boundingRectangles.size());
+		for (Rect rect : boundingRectangles) {
+			start = System.nanoTime();
+			Mat croppedRectMat = imageMat.submat(rect);
+			try {
+				segmentedChars.add(mat2CharacterImage(croppedRectMat, rect));
+				Metrics.recordSince(PipelineMetrics.Stage.ENCODE, start);
+			} finally {
+				croppedRectMat.release();
+			}
+		}
+
+		return segmentedChars;
+	}
+
+	/**
+	 * Convert a cropped character to the input format of the CNN model: resized to
+	 * CharacterImage.HEIGHT x CharacterImage.WIDTH, RGB and scaled by 1/255.
+	 * 
+	 * @param croppedRectMat
+	 * @param boundingBox
+	 * @return
+	 */
+	public static CharacterImage mat2CharacterImage(Mat croppedRectMat, Rect boundingBox) {
+
+		float[] pixels = new float[CharacterImage.SIZE];
+
+		try (MatScope scope = new MatScope()) {
+			Mat resized = scope.newMat();
+			Imgproc.resize(croppedRectMat, resized, new Size(CharacterImage.WIDTH, CharacterImage.HEIGHT), 0, 0,
+					Imgproc.INTER_LINEAR);
+			Imgproc.cvtColor(resized, resized,
+					resized.channels() == 1 ? Imgproc.COLOR_GRAY2RGB : Imgproc.COLOR_BGR2RGB);
+
+			Mat scaled = scope.newMat();
+			resized.convertTo(scaled, CvType.CV_32FC3, 1 / 255.0);
+			scaled.get(0, 0, pixels);
+		}
+
+		return new CharacterImage(pixels, boundingBox);
+	}
+
 	/**
 	 * Process captcha image and segment its characters
 	 * 
@@ -288,31 +748,134 @@ public class CaptchaImageProcessor {
 	 */
 	public ArrayList<byte[]> process(byte[] captchaImageBytes) throws IOException {
 
-		Mat captchaImageMat = byteArray2Mat(captchaImageBytes);
-		Mat threshCaptcha = thresholdCaptchaImage(captchaImageMat);
+		try (MatScope scope = new MatScope()) {
+			long start = System.nanoTime();
+			Mat captchaImageMat = scope.add(byteArray2Mat(captchaImageBytes));
+			Metrics.recordSince(PipelineMetrics.Stage.DECODE, start);
 
-		double minHeight = 5;
-		double minWidth = 5;
+			start = System.nanoTime();
+			Mat threshCaptcha = scope.add(thresholdCaptchaImage(captchaImageMat));
+			Metrics.recordSince(PipelineMetrics.Stage.THRESHOLD, start);
 
-		ArrayList<byte[]> segmentedChars = segmentCaptchaImage(threshCaptcha, minHeight, minWidth);
+			double minHeight = 5;
+			double minWidth = 5;
 
-		return segmentedChars;
+			ArrayList<byte[]> segmentedChars = segmentCaptchaImage(threshCaptcha, minHeight, minWidth);
+
+			return segmentedChars;
+		}
+	}
+
+	/**
+	 * Process captcha image and segment its characters as raw pixels, ready to be
+	 * fed to the CNN model without a JPEG round-trip.
+	 * 
+	 * @param captchaImageBytes
+	 * @return List of segmented characters of captcha, sorted by x-axis coordinate.
+	 * @throws IOException
+	 */
+	public List<CharacterImage> processPixels(byte[] captchaImageBytes) throws IOException {
+
+		try (MatScope scope = new MatScope()) {
+			long start = System.nanoTime();
+			Mat captchaImageMat = scope.add(byteArray2Mat(captchaImageBytes));
+			Metrics.recordSince(PipelineMetrics.Stage.DECODE, start);
+
+			start = System.nanoTime();
+			Mat threshCaptcha = scope.add(thresholdCaptchaImage(captchaImageMat));
+			Metrics.recordSince(PipelineMetrics.Stage.THRESHOLD, start);
+
+			double minHeight = 5;
+			double minWidth = 5;
+
+			return segmentCaptchaPixels(threshCaptcha, minHeight, minWidth);
+		}
 	}
 
+	/**
+	 * Segment a captcha image and save its characters as Char_i.jpg files. To
+	 * solve many captchas at once, see {@link BatchSolver}.
+	 * 
+	 * Usage: CaptchaImageProcessor captcha-image output-directory
+	 */
 	public static void main(String[] args) throws IOException {
 
-		String dirToSave = "U:\\";
-		String captchaPath = "U:\\CaptchasCVM\\img272_.jpg";
-		File imageFile = new File(captchaPath);
+		if (args.length < 2) {
+			System.err.println("Usage: CaptchaImageProcessor captcha-image output-directory");
+			System.exit(1);
+		}
+
+		File imageFile = new File(args[0]);
+		File dirToSave = new File(args[1]);
 		byte[] imageBytes = Files.readAllBytes(imageFile.toPath());
 
 		CaptchaImageProcessor processor = new CaptchaImageProcessor();
 		List<byte[]> segmentedChars = processor.process(imageBytes);
 
 		for (int i = 0; i < segmentedChars.size(); i++) {
-			saveImageFromByteArray(segmentedChars.get(i), dirToSave + "Char_" + i + ".jpg");
+			saveImageFromByteArray(segmentedChars.get(i), new File(dirToSave, "Char_" + i + ".jpg").getPath());
+		}
+
+	}
+
+	/**
+	 * Buffers of a thread encoding characters to JPEG. The BufferedImage only
+	 * grows, and smaller characters are written from its top left corner as the
+	 * source region of the writer.
+	 */
+	private static class JpegScratch {
+		private final Mat swapped = new Mat();
+		private final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+		private final ImageWriteParam param = writer.getDefaultWriteParam();
+		private final Rectangle region = new Rectangle();
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final ImageOutputStream output = new MemoryCacheImageOutputStream(bytes);
+		private byte[] pixels = new byte[0];
+		private BufferedImage image;
+		private IIOImage iioImage;
+
+		/**
+		 * Pixel buffer of at least the given size. Its size is kept a multiple of 3,
+		 * as Mat.get requires a whole number of pixels.
+		 */
+		private byte[] pixels(int size) {
+			if (pixels.length < size) {
+				pixels = new byte[(size + 2) / 3 * 3];
+			}
+			return pixels;
 		}
 
+		private byte[] encode(byte[] data, int cols, int rows, int type) throws IOException {
+			if (image == null || image.getType() != type || image.getWidth() < cols || image.getHeight() < rows) {
+				int width = image == null ? cols : Math.max(cols, image.getWidth());
+				int height = image == null ? rows : Math.max(rows, image.getHeight());
+				image = new BufferedImage(width, height, type);
+				iioImage = new IIOImage(image, null, null);
+			}
+			image.getRaster().setDataElements(0, 0, cols, rows, data);
+
+			region.setBounds(0, 0, cols, rows);
+			param.setSourceRegion(region);
+
+			bytes.reset();
+			writer.setOutput(output);
+			writer.write(null, iioImage, param);
+			output.flush();
+			return bytes.toByteArray();
+		}
+
+		/**
+		 * Free the native Mat and the writer, once the scratch is dropped.
+		 */
+		private void release() {
+			swapped.release();
+			writer.dispose();
+			try {
+				output.close();
+			} catch (IOException e) {
+				// In memory, nothing left to free
+			}
+		}
 	}
 
 }
@@ -0,0 +1,81 @@
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Detailed answer of a captcha: the prediction of each segmented character,
+ * sorted by x-axis coordinate.
+ */
+public class CaptchaPrediction {
+
+	private final List<CharacterPrediction> characters;
+
+	public CaptchaPrediction(List<CharacterPrediction> characters) {
+		this.characters = Collections.unmodifiableList(characters);
+	}
+
+	/**
+	 * Prediction of each segmented character, including the rejected ones.
+	 *
+	 * @return
+	 */
+	public List<CharacterPrediction> characters() {
+		return characters;
+	}
+
+	/**
+	 * Text of the captcha made of the accepted characters, as returned by
+	 * {@link Decaptcher#decapcha(byte[])}.
+	 *
+	 * @return
+	 */
+	public String text() {
+		StringBuilder text = new StringBuilder(characters.size());
+		for (CharacterPrediction character : characters) {
+			if (character.isAccepted()) {
+				text.append(character.label());
+			}
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Whether every segmented character was accepted.
+	 *
+	 * @return
+	 */
+	public boolean isAccepted() {
+		for (CharacterPrediction character : characters) {
+			if (!character.isAccepted()) {
+				return false;
+			}
+		}
+		return !characters.isEmpty();
+	}
+
+	/**
+	 * Probability of the least confident character, 0 if no character was
+	 * segmented and NaN if the classifier gives no probabilities.
+	 *
+	 * @return
+	 */
+	public float confidence() {
+		if (characters.isEmpty()) {
+			return 0;
+		}
+
+		float confidence = 1;
+		for (CharacterPrediction character : characters) {
+			confidence = Math.min(confidence, character.probability());
+			if (Float.isNaN(character.probability())) {
+				return Float.NaN;
+			}
+		}
+		return confidence;
+	}
+
+	@Override
+	public String toString() {
+		return text() + " " + characters;
+	}
+
+}
@@ -0,0 +1,338 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Standalone HTTP service solving captchas for many clients with a single
+ * model, so one process per host replaces a decaptcher embedded in every
+ * scraper JVM.
+ *
+ * <ul>
+ * <li>POST /solve with the raw image bytes as body answers the captcha text.
+ * When the decaptcher is a {@link DLDecaptcher}, the X-Captcha-Accepted and
+ * X-Captcha-Confidence headers give the detail of the prediction.</li>
+ * <li>GET /health answers 200 once the decaptcher is warmed up, 503
+ * before.</li>
+ * <li>GET /metrics answers the request counters and latencies, and the
+ * pipeline metrics when they are kept in a {@link HistogramMetrics}, in the
+ * Prometheus text format.</li>
+ * </ul>
+ *
+ * At most maxInFlight captchas are solved at the same time. Requests over that
+ * limit are not queued: they are answered 503 at once with a Retry-After
+ * header, so an overloaded server sheds load instead of letting latencies grow
+ * until clients time out. Bodies are read before a request is admitted, so slow
+ * uploads do not hold the solving capacity, and the server runs on a bounded
+ * pool of threads: connections beyond its queue are closed.
+ *
+ * Usage: CaptchaSolverServer [port] [maxInFlight] [threshold]
+ */
+public class CaptchaSolverServer implements AutoCloseable {
+
+	public static final int DEFAULT_PORT = 8080;
+
+	// Larger bodies are not captchas
+	private static final int MAX_IMAGE_BYTES = 1024 * 1024;
+
+	// Threads over maxInFlight, reading bodies and shedding requests while all captchas in flight are solved
+	private static final int SPARE_THREADS = 4;
+
+	private final Decaptcher decaptcher;
+	private final HistogramMetrics metrics;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Semaphore admission;
+	private final int maxInFlight;
+
+	// Metrics
+	private final AtomicLong solvedCount = new AtomicLong();
+	private final AtomicLong shedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final LatencyHistogram solveLatencies = new LatencyHistogram();
+
+	/**
+	 *
+	 * @param address
+	 *            address to listen on
+	 * @param decaptcher
+	 *            decaptcher shared by all requests
+	 * @param maxInFlight
+	 *            maximum number of captchas solved at the same time
+	 * @param metrics
+	 *            pipeline metrics exported on /metrics, or null
+	 * @throws IOException
+	 *             if the address can not be bound
+	 */
+	public CaptchaSolverServer(InetSocketAddress address, Decaptcher decaptcher, int maxInFlight,
+			HistogramMetrics metrics) throws IOException {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("Max in flight must be positive: " + maxInFlight);
+		}
+
+		this.decaptcher = decaptcher;
+		this.metrics = metrics;
+		this.maxInFlight = maxInFlight;
+		this.admission = new Semaphore(maxInFlight);
+
+		// Requests waiting for a thread are bounded too; the server closes the connections rejected
+		int threads = maxInFlight + SPARE_THREADS;
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(maxInFlight), runnable -> {
+					Thread thread = new Thread(runnable, "captcha-solver-http");
+					thread.setDaemon(true);
+					return thread;
+				}, (runnable, pool) -> {
+					shedCount.incrementAndGet();
+					throw new RejectedExecutionException("Captcha solver server overloaded");
+				});
+
+		this.server = HttpServer.create(address, 0);
+		this.server.setExecutor(executor);
+		this.server.createContext("/solve", this::solve);
+		this.server.createContext("/health", this::health);
+		this.server.createContext("/metrics", this::metrics);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Port the server listens on, useful when created on port 0.
+	 *
+	 * @return
+	 */
+	public int port() {
+		return server.getAddress().getPort();
+	}
+
+	private void solve(HttpExchange exchange) throws IOException {
+		try {
+			if (!exchange.getRequestMethod().equals("POST")) {
+				exchange.getResponseHeaders().set("Allow", "POST");
+				respond(exchange, 405, "Method not allowed");
+				return;
+			}
+
+			long contentLength;
+			try {
+				contentLength = contentLength(exchange);
+			} catch (NumberFormatException e) {
+				respond(exchange, 400, "Invalid Content-Length");
+				return;
+			}
+
+			// Read before admission, so a slow upload does not hold a permit
+			byte[] captchaImage = readBody(exchange, contentLength);
+			if (captchaImage == null) {
+				respond(exchange, 413, "Image larger than " + MAX_IMAGE_BYTES + " bytes");
+				return;
+			}
+			if (captchaImage.length == 0) {
+				respond(exchange, 400, "Empty image");
+				return;
+			}
+
+			if (!admission.tryAcquire()) {
+				shedCount.incrementAndGet();
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				respond(exchange, 503, "Overloaded");
+				return;
+			}
+
+			try {
+				long start = System.nanoTime();
+				String answer;
+				if (decaptcher instanceof DLDecaptcher) {
+					CaptchaPrediction prediction = ((DLDecaptcher) decaptcher).decapchaDetailed(captchaImage);
+					answer = prediction.text();
+					exchange.getResponseHeaders().set("X-Captcha-Accepted", Boolean.toString(prediction.isAccepted()));
+					if (!Float.isNaN(prediction.confidence())) {
+						exchange.getResponseHeaders().set("X-Captcha-Confidence", Float.toString(prediction.confidence()));
+					}
+				} else {
+					answer = decaptcher.decapcha(captchaImage);
+				}
+				solveLatencies.record(System.nanoTime() - start);
+				solvedCount.incrementAndGet();
+
+				respond(exchange, 200, answer == null ? "" : answer);
+			} catch (RuntimeException e) {
+				failedCount.incrementAndGet();
+				respond(exchange, 500, String.valueOf(e.getMessage()));
+			} finally {
+				admission.release();
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void health(HttpExchange exchange) throws IOException {
+		try {
+			boolean ready = !(decaptcher instanceof DLDecaptcher) || ((DLDecaptcher) decaptcher).isReady();
+			respond(exchange, ready ? 200 : 503, ready ? "Ready" : "Warming up");
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void metrics(HttpExchange exchange) throws IOException {
+		try {
+			StringBuilder text = new StringBuilder();
+			gauge(text, "captcha_server_solved_total", solvedCount.get());
+			gauge(text, "captcha_server_shed_total", shedCount.get());
+			gauge(text, "captcha_server_failed_total", failedCount.get());
+			gauge(text, "captcha_server_in_flight", maxInFlight - admission.availablePermits());
+			gauge(text, "captcha_server_max_in_flight", maxInFlight);
+			latencies(text, "captcha_server_solve", null, solveLatencies);
+
+			if (metrics != null) {
+				for (PipelineMetrics.Stage stage : PipelineMetrics.Stage.values()) {
+					latencies(text, "captcha_stage", stage.name().toLowerCase(), metrics.latency(stage));
+				}
+				for (PipelineMetrics.Counter counter : PipelineMetrics.Counter.values()) {
+					gauge(text, "captcha_" + counter.name().toLowerCase() + "_total", metrics.count(counter));
+				}
+			}
+
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			respond(exchange, 200, text.toString());
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static void gauge(StringBuilder text, String name, long value) {
+		text.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void latencies(StringBuilder text, String name, String stage, LatencyHistogram histogram) {
+		String labels = stage == null ? "" : "{stage=\"" + stage + "\"}";
+		text.append(name).append("_count").append(labels).append(' ').append(histogram.count()).append('\n');
+		text.append(name).append("_p50_micros").append(labels).append(' ')
+				.append(TimeUnit.NANOSECONDS.toMicros(histogram.percentile(0.5))).append('\n');
+		text.append(name).append("_p99_micros").append(labels).append(' ')
+				.append(TimeUnit.NANOSECONDS.toMicros(histogram.percentile(0.99))).append('\n');
+		text.append(name).append("_max_micros").append(labels).append(' ')
+				.append(TimeUnit.NANOSECONDS.toMicros(histogram.max())).append('\n');
+	}
+
+	/**
+	 * Length of the request body.
+	 *
+	 * @param exchange
+	 * @return length or -1 if not given, e.g. for a chunked body
+	 * @throws NumberFormatException
+	 *             if the Content-Length header is malformed or negative
+	 */
+	private static long contentLength(HttpExchange exchange) {
+		String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+		if (contentLength == null) {
+			return -1;
+		}
+		long length = Long.parseLong(contentLength.trim());
+		if (length < 0) {
+			throw new NumberFormatException("Negative Content-Length: " + length);
+		}
+		return length;
+	}
+
+	/**
+	 * Read the request body.
+	 *
+	 * @param exchange
+	 * @param contentLength
+	 *            length of the body or -1 if not given
+	 * @return body or null if larger than {@link #MAX_IMAGE_BYTES}
+	 * @throws IOException
+	 */
+	private static byte[] readBody(HttpExchange exchange, long contentLength) throws IOException {
+		if (contentLength > MAX_IMAGE_BYTES) {
+			return null;
+		}
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream(contentLength < 0 ? 8192 : (int) contentLength);
+		byte[] buffer = new byte[8192];
+		try (InputStream in = exchange.getRequestBody()) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				if (body.size() + read > MAX_IMAGE_BYTES) {
+					return null;
+				}
+				body.write(buffer, 0, read);
+			}
+		}
+		return body.toByteArray();
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		if (!exchange.getResponseHeaders().containsKey("Content-Type")) {
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		}
+		exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+		if (bytes.length > 0) {
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(bytes);
+			}
+		}
+	}
+
+	/**
+	 * Stop accepting requests, wait at most a second for the ones in flight and
+	 * stop the server threads.
+	 */
+	@Override
+	public void close() {
+		server.stop(1);
+		executor.shutdownNow();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		int maxInFlight = args.length > 1 ? Integer.parseInt(args[1])
+				: 4 * Runtime.getRuntime().availableProcessors();
+		float threshold = args.length > 2 ? Float.parseFloat(args[2]) : DLDecaptcher.DEFAULT_THRESHOLD;
+
+		HistogramMetrics metrics = new HistogramMetrics();
+		Metrics.set(metrics);
+		JmxMetricsExporter.register(metrics);
+
+		// Characters of all captchas in flight are classified in shared batches
+		BatchingClassifier<CharacterPrediction> classifier = new BatchingClassifier<>(
+				new CaptchaClassifier(threshold).predictor(), 64, 2, TimeUnit.MILLISECONDS);
+		DLDecaptcher decaptcher = DLDecaptcher.withPredictor(new CaptchaImageProcessor(), classifier);
+
+		CaptchaSolverServer server = new CaptchaSolverServer(new InetSocketAddress(port), decaptcher, maxInFlight,
+				metrics);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			server.close();
+			classifier.close();
+		}));
+
+		// Health answers 503 until the warm-up latencies converge, which a busy host may never see
+		server.start();
+		System.err.println("Listening on port " + server.port() + ", warming up");
+		for (int round = 0; round < 5 && !decaptcher.isReady(); round++) {
+			System.err.println(decaptcher.warmUp(10));
+		}
+		if (!decaptcher.isReady()) {
+			System.err.println("Warm-up latencies did not converge, health stays unavailable");
+		}
+	}
+
+}
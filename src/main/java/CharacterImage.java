@@ -0,0 +1,87 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+
+import javax.imageio.ImageIO;
+
+import org.opencv.core.Rect;
+
+/**
+ * Segmented captcha character already in the input format of the CNN model:
+ * HEIGHT x WIDTH pixels, R, G, B channels, each color scaled to [0, 1].
+ *
+ * Pixels are kept as floats so they can be copied straight into a Tensorflow
+ * tensor, skipping the JPEG encode/decode of the byte[] path.
+ */
+public class CharacterImage {
+
+	public static final int HEIGHT = 20;
+	public static final int WIDTH = 20;
+	public static final int CHANNELS = 3;
+	public static final int SIZE = HEIGHT * WIDTH * CHANNELS;
+
+	private final FloatBuffer pixels;
+	private final Rect boundingBox;
+
+	/**
+	 *
+	 * @param pixels
+	 *            HEIGHT x WIDTH x CHANNELS normalized pixels, in row major order
+	 * @param boundingBox
+	 *            position of the character in the captcha image
+	 */
+	public CharacterImage(float[] pixels, Rect boundingBox) {
+		if (pixels.length != SIZE) {
+			throw new IllegalArgumentException("Expected " + SIZE + " pixels values, got " + pixels.length);
+		}
+
+		this.pixels = FloatBuffer.wrap(pixels.clone());
+		this.boundingBox = boundingBox;
+	}
+
+	/**
+	 * Normalized pixels, as a read-only view positioned at the first value.
+	 *
+	 * @return
+	 */
+	public FloatBuffer pixels() {
+		return pixels.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Position of the character in the captcha image.
+	 *
+	 * @return
+	 */
+	public Rect boundingBox() {
+		return boundingBox;
+	}
+
+	/**
+	 * Encode the character as JPEG, for classifiers that only accept image bytes.
+	 *
+	 * @return
+	 */
+	public byte[] toJpeg() {
+		BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+		FloatBuffer values = pixels();
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				int r = Math.round(values.get() * 255);
+				int g = Math.round(values.get() * 255);
+				int b = Math.round(values.get() * 255);
+				image.setRGB(x, y, (r << 16) | (g << 8) | b);
+			}
+		}
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try {
+			ImageIO.write(image, "jpg", baos);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return baos.toByteArray();
+	}
+
+}
@@ -0,0 +1,171 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import org.opencv.core.Rect;
+
+/**
+ * Classification of a single captcha character: the most probable labels in
+ * decreasing order of probability, whether the best one passed the classifier
+ * threshold and where the character is in the captcha image.
+ */
+public class CharacterPrediction {
+
+	private final List<String> labels;
+	private final float[] probabilities;
+	private final boolean accepted;
+	private final Rect boundingBox;
+
+	/**
+	 *
+	 * @param labels
+	 *            top labels, most probable first
+	 * @param probabilities
+	 *            probability of each label, in the same order
+	 * @param accepted
+	 *            whether the most probable label passed the threshold
+	 * @param boundingBox
+	 *            position of the character in the captcha image, or null if
+	 *            unknown
+	 */
+	public CharacterPrediction(String[] labels, float[] probabilities, boolean accepted, Rect boundingBox) {
+		if (labels.length == 0 || labels.length != probabilities.length) {
+			throw new IllegalArgumentException(
+					"Expected as many labels as probabilities: " + labels.length + " != " + probabilities.length);
+		}
+
+		this.labels = Collections.unmodifiableList(Arrays.asList(labels.clone()));
+		this.probabilities = probabilities.clone();
+		this.accepted = accepted;
+		this.boundingBox = boundingBox;
+	}
+
+	/**
+	 * Prediction from the output probabilities of a model. The topK labels with
+	 * max probability are found in a single pass over the probabilities, keeping
+	 * them sorted by insertion.
+	 *
+	 * @param probabilities
+	 *            probability of each output of the model
+	 * @param labels
+	 *            label of each output of the model
+	 * @param topK
+	 *            number of labels kept
+	 * @param threshold
+	 *            minimum probability to accept the most probable label
+	 * @param boundingBox
+	 *            position of the character in the captcha image, or null if
+	 *            unknown
+	 * @return
+	 */
+	public static CharacterPrediction fromProbabilities(float[] probabilities, IntFunction<String> labels, int topK,
+			float threshold, Rect boundingBox) {
+
+		int k = Math.min(topK, probabilities.length);
+		int[] topAt = new int[k];
+		float[] topProb = new float[k];
+		int found = 0;
+
+		for (int i = 0; i < probabilities.length; i++) {
+			float probability = probabilities[i];
+			if (found == k && probability <= topProb[k - 1]) {
+				continue;
+			}
+
+			// Shift lower probabilities down and insert
+			int j = found < k ? found++ : k - 1;
+			while (j > 0 && topProb[j - 1] < probability) {
+				topAt[j] = topAt[j - 1];
+				topProb[j] = topProb[j - 1];
+				j--;
+			}
+			topAt[j] = i;
+			topProb[j] = probability;
+		}
+
+		String[] topLabels = new String[k];
+		for (int i = 0; i < k; i++) {
+			topLabels[i] = labels.apply(topAt[i]);
+		}
+
+		return new CharacterPrediction(topLabels, topProb, topProb[0] > threshold, boundingBox);
+	}
+
+	/**
+	 * Prediction of a classifier giving only labels, without probabilities.
+	 *
+	 * @param label
+	 *            label or null if the classifier rejected the character
+	 * @param boundingBox
+	 * @return prediction with an unknown (NaN) probability
+	 */
+	public static CharacterPrediction ofLabel(String label, Rect boundingBox) {
+		return new CharacterPrediction(new String[] { label }, new float[] { Float.NaN }, label != null, boundingBox);
+	}
+
+	/**
+	 * Most probable label, even if it did not pass the threshold.
+	 *
+	 * @return
+	 */
+	public String label() {
+		return labels.get(0);
+	}
+
+	/**
+	 * Probability of the most probable label, NaN if unknown.
+	 *
+	 * @return
+	 */
+	public float probability() {
+		return probabilities[0];
+	}
+
+	/**
+	 * Whether the most probable label passed the classifier threshold.
+	 *
+	 * @return
+	 */
+	public boolean isAccepted() {
+		return accepted;
+	}
+
+	/**
+	 * Top labels, most probable first. The first one is {@link #label()}.
+	 *
+	 * @return
+	 */
+	public List<String> topLabels() {
+		return labels;
+	}
+
+	/**
+	 * Probability of the label at the given rank of {@link #topLabels()}.
+	 *
+	 * @param rank
+	 * @return
+	 */
+	public float probability(int rank) {
+		return probabilities[rank];
+	}
+
+	/**
+	 * Position of the character in the captcha image, null if unknown.
+	 *
+	 * @return
+	 */
+	public Rect boundingBox() {
+		return boundingBox;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder(accepted ? "" : "rejected ");
+		for (int i = 0; i < labels.size(); i++) {
+			text.append(i == 0 ? "" : ", ").append(labels.get(i)).append('=').append(probabilities[i]);
+		}
+		return text.toString();
+	}
+
+}
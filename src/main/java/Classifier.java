@@ -1,10 +1,48 @@
-
+import java.util.ArrayList;
+import java.util.List;
 
 public interface Classifier<T>{
 
 	
 	public T classify(byte[] imageBytes);	
 	
+	/**
+	 * Classify several images at once. The result has one entry per image, in the same order.
+	 * Implementations backed by a model should override it to evaluate all images in a single pass.
+	 * 
+	 * @param imagesBytes
+	 * @return
+	 */
+	public default List<T> classifyBatch(List<byte[]> imagesBytes) {
+		List<T> results = new ArrayList<>(imagesBytes.size());
+		for (byte[] imageBytes : imagesBytes) {
+			results.add(classify(imageBytes));
+		}
+		return results;
+	}
+	
+	/**
+	 * Classify characters already normalized to the model input. The result has one entry per character,
+	 * in the same order. Defaults to encoding each character as JPEG; classifiers able to take the pixels
+	 * directly should override it.
+	 * 
+	 * @param characters
+	 * @return
+	 */
+	public default List<T> classifyPixels(List<CharacterImage> characters) {
+		List<byte[]> imagesBytes = new ArrayList<>(characters.size());
+		for (CharacterImage character : characters) {
+			imagesBytes.add(character.toJpeg());
+		}
+		return classifyBatch(imagesBytes);
+	}
+	
+	/**
+	 * Open the resources of the classifier, such as model sessions, ahead of the first request.
+	 * Defaults to nothing.
+	 */
+	public default void warmUp() {
+	}
 	 
 
 }
@@ -0,0 +1,240 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * A version of the CNN model: the frozen graph generated in Python and its
+ * labels. The Tensorflow graph and its sessions are only built on first use.
+ *
+ * Models are reference counted, so a {@link ModelRegistry} can retire a model
+ * replaced by a new version once the requests still using it are done.
+ */
+public class CnnModel {
+
+	private final String version;
+	private final byte[] graphDef;
+	private final String[] labels;
+	private final SessionConfig sessionConfig;
+	private volatile SessionPool sessionPool;
+
+	// One reference held by the registry plus one per request in flight
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	/**
+	 *
+	 * @param version
+	 *            name of the model version, e.g. for logs
+	 * @param graphDef
+	 *            Protobuffer model generated in Python
+	 * @param labels
+	 *            label of each output of the model
+	 * @param sessionConfig
+	 *            number of sessions running the model at the same time and
+	 *            threads of each one
+	 */
+	public CnnModel(String version, byte[] graphDef, String[] labels, SessionConfig sessionConfig) {
+		if (labels.length == 0) {
+			throw new IllegalArgumentException("Model " + version + " has no labels");
+		}
+
+		this.version = version;
+		this.graphDef = graphDef;
+		this.labels = labels.clone();
+		this.sessionConfig = sessionConfig;
+	}
+
+	/**
+	 * Load a model from classpath resources, which also works when they are
+	 * packaged in a jar.
+	 *
+	 * @param version
+	 * @param graphResource
+	 *            e.g. CNN_Model/output_graph.pb
+	 * @param labelsResource
+	 *            e.g. CNN_Model/labels.txt, one label per line
+	 * @param sessionConfig
+	 * @return
+	 * @throws IOException
+	 */
+	public static CnnModel fromClasspath(String version, String graphResource, String labelsResource,
+			SessionConfig sessionConfig) throws IOException {
+		ClassLoader classLoader = CnnModel.class.getClassLoader();
+		try (InputStream graph = open(classLoader, graphResource);
+				InputStream labels = open(classLoader, labelsResource)) {
+			return new CnnModel(version, readAll(graph), readLabels(labels), sessionConfig);
+		}
+	}
+
+	/**
+	 * Load a model from files.
+	 *
+	 * @param version
+	 * @param graphFile
+	 * @param labelsFile
+	 * @param sessionConfig
+	 * @return
+	 * @throws IOException
+	 */
+	public static CnnModel fromPath(String version, Path graphFile, Path labelsFile,
+			SessionConfig sessionConfig) throws IOException {
+		try (InputStream labels = Files.newInputStream(labelsFile)) {
+			return new CnnModel(version, Files.readAllBytes(graphFile), readLabels(labels), sessionConfig);
+		}
+	}
+
+	/**
+	 * Load a model from files, reading the graph through a memory-mapped buffer
+	 * instead of the heap buffers of a stream. Tensorflow imports the graph from
+	 * a byte[], so it is still copied once.
+	 *
+	 * @param version
+	 * @param graphFile
+	 * @param labelsFile
+	 * @param sessionConfig
+	 * @return
+	 * @throws IOException
+	 */
+	public static CnnModel fromMappedFile(String version, Path graphFile, Path labelsFile,
+			SessionConfig sessionConfig) throws IOException {
+		byte[] graphDef;
+		try (FileChannel channel = FileChannel.open(graphFile, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			graphDef = new byte[buffer.remaining()];
+			buffer.get(graphDef);
+		}
+		try (InputStream labels = Files.newInputStream(labelsFile)) {
+			return new CnnModel(version, graphDef, readLabels(labels), sessionConfig);
+		}
+	}
+
+	private static InputStream open(ClassLoader classLoader, String resource) throws IOException {
+		InputStream stream = classLoader.getResourceAsStream(resource);
+		if (stream == null) {
+			throw new FileNotFoundException("Resource not found in classpath: " + resource);
+		}
+		return stream;
+	}
+
+	private static byte[] readAll(InputStream stream) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[64 * 1024];
+		int read;
+		while ((read = stream.read(buffer)) != -1) {
+			bytes.write(buffer, 0, read);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static String[] readLabels(InputStream stream) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+		List<String> labels = reader.lines().collect(Collectors.toList());
+		return labels.toArray(new String[labels.size()]);
+	}
+
+	public String version() {
+		return version;
+	}
+
+	public SessionConfig sessionConfig() {
+		return sessionConfig;
+	}
+
+	/**
+	 * Protobuffer model generated in Python.
+	 *
+	 * @return
+	 */
+	byte[] graphDef() {
+		return graphDef;
+	}
+
+	/**
+	 * Number of outputs of the model.
+	 *
+	 * @return
+	 */
+	public int labelCount() {
+		return labels.length;
+	}
+
+	/**
+	 * Label of an output of the model.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public String label(int index) {
+		return labels[index];
+	}
+
+	/**
+	 * Pool of sessions over the model graph, built on first call.
+	 *
+	 * @return
+	 * @throws IllegalStateException
+	 *             if the model is retired, its sessions being closed
+	 */
+	public SessionPool sessionPool() {
+		SessionPool pool = sessionPool;
+		if (pool == null || references.get() == 0) {
+			synchronized (this) {
+				if (references.get() == 0) {
+					throw new IllegalStateException("Model " + version + " is retired");
+				}
+				pool = sessionPool;
+				if (pool == null) {
+					pool = CaptchaClassifier.newSessionPool(graphDef, sessionConfig);
+					sessionPool = pool;
+				}
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Take a reference on the model, unless it is already retired.
+	 *
+	 * @return false if the model is retired
+	 */
+	boolean retain() {
+		int count;
+		do {
+			count = references.get();
+			if (count == 0) {
+				return false;
+			}
+		} while (!references.compareAndSet(count, count + 1));
+		return true;
+	}
+
+	/**
+	 * Give back a reference. The last one closes the sessions and the graph.
+	 */
+	void release() {
+		if (references.decrementAndGet() == 0) {
+			synchronized (this) {
+				if (sessionPool != null) {
+					sessionPool.close();
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "CnnModel " + version;
+	}
+
+}
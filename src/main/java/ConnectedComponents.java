@@ -0,0 +1,188 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * Connected-components labeler of a binary image, giving the bounding box of
+ * each 8-connected group of non-zero pixels.
+ *
+ * Unlike findContours with RETR_TREE, holes of characters such as 0, 6, 8 or
+ * 9 give no box, and no contour points are built: the image is scanned once,
+ * labels being merged with a union-find as components meet, and boxes are
+ * kept in primitive arrays. Like findContours, the 1-pixel border of the image
+ * is ignored.
+ *
+ * A labeler reuses its buffers from one image to the next and is not
+ * thread-safe.
+ */
+public class ConnectedComponents {
+
+	private byte[] pixels = new byte[0];
+	private int[] above = new int[0];
+	private int[] current = new int[0];
+
+	// Union-find parent and bounding box of each provisional label, 0 being the background
+	private int[] parent = new int[64];
+	private int[] minX = new int[64];
+	private int[] minY = new int[64];
+	private int[] maxX = new int[64];
+	private int[] maxY = new int[64];
+	private int labelCount;
+
+	// Components sorted by x-axis coordinate, x in the high bits and label in the low ones
+	private long[] order = new long[64];
+
+	/**
+	 * Bounding rectangles of the components of a binary image.
+	 *
+	 * @param binary
+	 *            1-channel 8-bit image, components being non-zero pixels
+	 * @param minHeight
+	 *            minimum height of bouding rectangle
+	 * @param minWidth
+	 *            minimum widht of bouding rectangle
+	 * @return bounding rectangles sorted by x-axis coordinate
+	 */
+	public List<Rect> boundingRects(Mat binary, double minHeight, double minWidth) {
+		if (binary.channels() != 1) {
+			throw new IllegalArgumentException("Binary image must have 1 channel: " + binary.channels());
+		}
+
+		int width = binary.cols();
+		int height = binary.rows();
+		if (pixels.length < width * height) {
+			pixels = new byte[width * height];
+		}
+		binary.get(0, 0, pixels);
+
+		label(width, height);
+
+		// Keep roots large enough, sorted by x without boxing
+		int count = 0;
+		for (int label = 1; label <= labelCount; label++) {
+			if (parent[label] == label && maxY[label] - minY[label] + 1 > minHeight
+					&& maxX[label] - minX[label] + 1 > minWidth) {
+				if (count == order.length) {
+					order = Arrays.copyOf(order, 2 * count);
+				}
+				order[count++] = ((long) minX[label] << 32) | label;
+			}
+		}
+		Arrays.sort(order, 0, count);
+
+		List<Rect> rects = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			int label = (int) order[i];
+			rects.add(new Rect(minX[label], minY[label], maxX[label] - minX[label] + 1,
+					maxY[label] - minY[label] + 1));
+		}
+		return rects;
+	}
+
+	/**
+	 * Label the pixels, keeping only two rows of labels, then fold the box of
+	 * each provisional label into the box of its root.
+	 */
+	private void label(int width, int height) {
+		if (above.length < width) {
+			above = new int[width];
+			current = new int[width];
+		}
+		Arrays.fill(above, 0, width, 0);
+		Arrays.fill(current, 0, width, 0);
+		labelCount = 0;
+
+		for (int y = 1; y < height - 1; y++) {
+			int row = y * width;
+			for (int x = 1; x < width - 1; x++) {
+				if (pixels[row + x] == 0) {
+					current[x] = 0;
+					continue;
+				}
+
+				// Neighbors already scanned: west, north-west, north and north-east
+				int label = current[x - 1];
+				label = merge(label, above[x - 1]);
+				label = merge(label, above[x]);
+				label = merge(label, above[x + 1]);
+
+				if (label == 0) {
+					label = newLabel(x, y);
+				} else {
+					minX[label] = Math.min(minX[label], x);
+					maxX[label] = Math.max(maxX[label], x);
+					maxY[label] = y;
+				}
+				current[x] = label;
+			}
+
+			int[] swap = above;
+			above = current;
+			current = swap;
+		}
+
+		for (int label = 1; label <= labelCount; label++) {
+			int root = find(label);
+			if (root != label) {
+				minX[root] = Math.min(minX[root], minX[label]);
+				minY[root] = Math.min(minY[root], minY[label]);
+				maxX[root] = Math.max(maxX[root], maxX[label]);
+				maxY[root] = Math.max(maxY[root], maxY[label]);
+			}
+		}
+	}
+
+	private int newLabel(int x, int y) {
+		int label = ++labelCount;
+		if (label == parent.length) {
+			int capacity = 2 * label;
+			parent = Arrays.copyOf(parent, capacity);
+			minX = Arrays.copyOf(minX, capacity);
+			minY = Arrays.copyOf(minY, capacity);
+			maxX = Arrays.copyOf(maxX, capacity);
+			maxY = Arrays.copyOf(maxY, capacity);
+		}
+		parent[label] = label;
+		minX[label] = x;
+		maxX[label] = x;
+		minY[label] = y;
+		maxY[label] = y;
+		return label;
+	}
+
+	/**
+	 * Union of two labels, either of which may be the background.
+	 *
+	 * @return label to give to the pixel
+	 */
+	private int merge(int label, int neighbor) {
+		if (neighbor == 0) {
+			return label;
+		}
+		if (label == 0) {
+			return neighbor;
+		}
+
+		int root = find(label);
+		int neighborRoot = find(neighbor);
+		if (root < neighborRoot) {
+			parent[neighborRoot] = root;
+		} else if (neighborRoot < root) {
+			parent[root] = neighborRoot;
+		}
+		return label;
+	}
+
+	private int find(int label) {
+		while (parent[label] != label) {
+			// Path halving
+			parent[label] = parent[parent[label]];
+			label = parent[label];
+		}
+		return label;
+	}
+
+}
@@ -1,44 +1,309 @@
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Deep Learning Decaptcher.
  * 
  * Uses a CNN Classifier trained in Python Keras with Tensorflow backend.
  * The image is processed using OpenCV to break the captcha into simple characters.
- * Each char is inputed on the classifier, which assigns a probability according the trained model. 
+ * The chars are inputed together on the classifier, which assigns a probability to each one according the trained model. 
  * 
  * @author gmarinelli
  *
  */
-public class DLDecaptcher implements Decaptcher {
+public class DLDecaptcher implements DetailedDecaptcher {
+	
+	public static final float DEFAULT_THRESHOLD = 0.6f;
+	
+	// Captcha images bundled in the classpath, used to warm up the pipeline
+	public static final String SAMPLES_RESOURCE = "Samples";
+	
+	// Largest change of the p99 latency between the last two warm-up iterations
+	public static final double DEFAULT_WARM_UP_TOLERANCE = 0.1;
+	
+	private final CaptchaImageProcessor processor;
+	private final Classifier<CharacterPrediction> predictor;
+	private volatile boolean ready;
+	
+	public DLDecaptcher() {
+		this(DEFAULT_THRESHOLD);
+	}
+	
+	/**
+	 * 
+	 * @param threshold Minimum probability to accept a character as answer of classification.
+	 */
+	public DLDecaptcher(float threshold) {
+		this(new CaptchaImageProcessor(), new CaptchaClassifier(threshold).predictor());
+	}
+	
+	/**
+	 * 
+	 * @param classifier Classifier of the segmented chars, e.g. a {@link BatchingClassifier} shared by
+	 *            concurrent callers in front of a {@link CaptchaClassifier}.
+	 */
+	public DLDecaptcher(Classifier<String> classifier) {
+		this(new CaptchaImageProcessor(), new LabelPredictor(classifier));
+	}
+	
+	/**
+	 * The decaptcher is meant to be created once and shared: it is thread-safe as long as its classifier is,
+	 * which is the case of {@link CaptchaClassifier} and {@link BatchingClassifier}.
+	 * 
+	 * @param processor Processor segmenting the captcha image into chars.
+	 * @param predictor Classifier of the segmented chars.
+	 */
+	private DLDecaptcher(CaptchaImageProcessor processor, Classifier<CharacterPrediction> predictor) {
+		this.processor = processor;
+		this.predictor = predictor;
+	}
+	
+	/**
+	 * Creates a decaptcher over a classifier of labels. Such a classifier gives no probabilities: the
+	 * detailed answers of the decaptcher then have NaN probabilities.
+	 * 
+	 * @param processor Processor segmenting the captcha image into chars.
+	 * @param classifier Classifier of the segmented chars.
+	 * @return
+	 * @see #withPredictor(CaptchaImageProcessor, Classifier)
+	 */
+	public static DLDecaptcher withClassifier(CaptchaImageProcessor processor, Classifier<String> classifier) {
+		return new DLDecaptcher(processor, new LabelPredictor(classifier));
+	}
+	
+	/**
+	 * Creates a decaptcher whose detailed answers carry the probabilities of each char.
+	 * 
+	 * @param processor Processor segmenting the captcha image into chars.
+	 * @param predictor Classifier of the segmented chars, e.g. {@link CaptchaClassifier#predictor()}.
+	 * @return
+	 */
+	public static DLDecaptcher withPredictor(CaptchaImageProcessor processor, Classifier<CharacterPrediction> predictor) {
+		return new DLDecaptcher(processor, predictor);
+	}
 	
 	@Override
 	public String decapcha(byte[] captchaImage) {
+		return decapchaDetailed(captchaImage).text();
+	}
+	
+	/**
+	 * Identifies the captcha keeping the prediction of every segmented char, including the ones below
+	 * the threshold, so the caller can decide to accept, retry or escalate the answer.
+	 * 
+	 * @param captchaImage
+	 * @return
+	 */
+	@Override
+	public CaptchaPrediction decapchaDetailed(byte[] captchaImage) {
 
-		CaptchaImageProcessor processor = new CaptchaImageProcessor();
-		CaptchaClassifier classifier = new CaptchaClassifier(0.6f);
-		String captcha = "";
+		List<CharacterPrediction> predictions = new ArrayList<>();
 
 		try {
-			ArrayList<byte[]> captchaChars = processor.process(captchaImage);
-
-			for (byte[] captchaChar : captchaChars) {
-				String classifiedChar = classifier.classify(captchaChar);
+			List<CharacterImage> captchaChars = processor.processPixels(captchaImage);
+			Metrics.increment(PipelineMetrics.Counter.CAPTCHAS);
+			Metrics.increment(PipelineMetrics.Counter.CHARACTERS, captchaChars.size());
 
-				if (classifiedChar != null) {
-					captcha += classifiedChar;
-				}
-			}
+			// Classify all chars in a single pass through the CNN
+			predictions.addAll(predictor.classifyPixels(captchaChars));
 
 		} catch (IOException e) {
 
 			e.printStackTrace();
 		}
 
-		return captcha;
+		return new CaptchaPrediction(predictions);
+	}
+	
+	/**
+	 * Run the captcha samples bundled in the classpath through every stage of the pipeline, so the
+	 * first requests do not pay for the native libraries load, the graph import, the sessions creation
+	 * and the JIT compilation, with a tolerance of {@link #DEFAULT_WARM_UP_TOLERANCE}.
+	 * 
+	 * @param maxIterations Maximum number of runs over all samples.
+	 * @return timings of the warm-up
+	 * @throws IOException if the samples can not be read
+	 * @see #warmUp(int, double)
+	 */
+	public WarmUpReport warmUp(int maxIterations) throws IOException {
+		return warmUp(maxIterations, DEFAULT_WARM_UP_TOLERANCE);
+	}
+	
+	/**
+	 * Run the captcha samples bundled in the classpath through every stage of the pipeline until the
+	 * p99 latency of an iteration is within the tolerance of the previous one. The decaptcher is ready
+	 * once the latency has converged: if it has not after maxIterations, the report tells so and the
+	 * warm-up can be run again.
+	 * 
+	 * @param maxIterations Maximum number of runs over all samples, at least 2.
+	 * @param tolerance Largest relative change of the p99 latency between two iterations, e.g. 0.1 for
+	 *            10%.
+	 * @return timings of the warm-up
+	 * @throws IOException if the samples can not be read
+	 */
+	public WarmUpReport warmUp(int maxIterations, double tolerance) throws IOException {
+		if (maxIterations < 2) {
+			throw new IllegalArgumentException("Max iterations must be at least 2: " + maxIterations);
+		}
+
+		long start = System.nanoTime();
+		List<byte[]> samples = bundledSamples();
+
+		// First captcha pays for the pipeline initialization
+		decapchaDetailed(samples.get(0));
+		long firstCaptchaNanos = System.nanoTime() - start;
+		predictor.warmUp();
+
+		long[] p50Nanos = new long[maxIterations];
+		long[] p99Nanos = new long[maxIterations];
+		LatencyHistogram latencies = new LatencyHistogram();
+		int iterations = 0;
+		boolean converged = false;
+		while (!converged && iterations < maxIterations) {
+			latencies.reset();
+			for (byte[] sample : samples) {
+				long captchaStart = System.nanoTime();
+				decapchaDetailed(sample);
+				latencies.record(System.nanoTime() - captchaStart);
+
+				// JPEG path, not used by decapcha
+				predictor.classifyBatch(processor.process(sample));
+			}
+			p50Nanos[iterations] = latencies.percentile(0.5);
+			p99Nanos[iterations] = latencies.percentile(0.99);
+			iterations++;
+
+			converged = iterations > 1
+					&& Math.abs(p99Nanos[iterations - 1] - p99Nanos[iterations - 2]) <= tolerance * p99Nanos[iterations - 2];
+		}
+
+		if (converged) {
+			ready = true;
+		}
+		return new WarmUpReport(samples.size(), firstCaptchaNanos, Arrays.copyOf(p50Nanos, iterations),
+				Arrays.copyOf(p99Nanos, iterations), tolerance, System.nanoTime() - start);
+	}
+	
+	/**
+	 * Whether a warm-up has converged, e.g. for a readiness probe.
+	 * 
+	 * @return
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+	
+	/**
+	 * Read the captcha samples bundled in the classpath, either from a directory or from a jar.
+	 * 
+	 * @return images sorted by file name
+	 * @throws IOException
+	 */
+	private static List<byte[]> bundledSamples() throws IOException {
+		URL url = DLDecaptcher.class.getClassLoader().getResource(SAMPLES_RESOURCE);
+		if (url == null) {
+			throw new FileNotFoundException("Resource not found in classpath: " + SAMPLES_RESOURCE);
+		}
+
+		URI uri;
+		try {
+			uri = url.toURI();
+		} catch (URISyntaxException e) {
+			throw new IOException(e);
+		}
+
+		if (!"jar".equals(uri.getScheme())) {
+			return readImages(Paths.get(uri));
+		}
+
+		FileSystem jar;
+		boolean opened = false;
+		try {
+			jar = FileSystems.newFileSystem(uri, Collections.<String, Object>emptyMap());
+			opened = true;
+		} catch (FileSystemAlreadyExistsException e) {
+			jar = FileSystems.getFileSystem(uri);
+		}
+		try {
+			return readImages(jar.provider().getPath(uri));
+		} finally {
+			if (opened) {
+				jar.close();
+			}
+		}
+	}
+	
+	private static List<byte[]> readImages(Path directory) throws IOException {
+		List<Path> files;
+		try (Stream<Path> list = Files.list(directory)) {
+			files = list.filter(file -> file.getFileName().toString().toLowerCase().endsWith(".jpg")).sorted()
+					.collect(Collectors.toList());
+		}
+		if (files.isEmpty()) {
+			throw new FileNotFoundException("No captcha samples in " + directory);
+		}
+
+		List<byte[]> images = new ArrayList<>(files.size());
+		for (Path file : files) {
+			images.add(Files.readAllBytes(file));
+		}
+		return images;
+	}
+	
+	/**
+	 * Predictions of a classifier giving only labels.
+	 */
+	private static class LabelPredictor implements Classifier<CharacterPrediction> {
+		private final Classifier<String> classifier;
+
+		private LabelPredictor(Classifier<String> classifier) {
+			this.classifier = classifier;
+		}
+
+		@Override
+		public CharacterPrediction classify(byte[] imageBytes) {
+			return CharacterPrediction.ofLabel(classifier.classify(imageBytes), null);
+		}
+
+		@Override
+		public List<CharacterPrediction> classifyBatch(List<byte[]> imagesBytes) {
+			List<CharacterPrediction> predictions = new ArrayList<>(imagesBytes.size());
+			for (String label : classifier.classifyBatch(imagesBytes)) {
+				predictions.add(CharacterPrediction.ofLabel(label, null));
+			}
+			return predictions;
+		}
+
+		@Override
+		public List<CharacterPrediction> classifyPixels(List<CharacterImage> characters) {
+			List<String> labels = classifier.classifyPixels(characters);
+			List<CharacterPrediction> predictions = new ArrayList<>(labels.size());
+			for (int i = 0; i < labels.size(); i++) {
+				predictions.add(CharacterPrediction.ofLabel(labels.get(i), characters.get(i).boundingBox()));
+			}
+			return predictions;
+		}
+
+		@Override
+		public void warmUp() {
+			classifier.warmUp();
+		}
 	}
 
 }
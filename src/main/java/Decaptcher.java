@@ -1,6 +1,23 @@
-
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public interface Decaptcher {
 
 	public String decapcha(byte[] captchaImage);
+
+	/**
+	 * Identifies the text of several captchas. Defaults to solving them one at a
+	 * time, in the iteration order of the map.
+	 * 
+	 * @param captchaImages
+	 *            captcha images by key
+	 * @return captcha texts by the same keys
+	 */
+	public default <K> Map<K, String> decapchaAll(Map<K, byte[]> captchaImages) {
+		Map<K, String> captchas = new LinkedHashMap<>();
+		for (Map.Entry<K, byte[]> captchaImage : captchaImages.entrySet()) {
+			captchas.put(captchaImage.getKey(), decapcha(captchaImage.getValue()));
+		}
+		return captchas;
+	}
 }
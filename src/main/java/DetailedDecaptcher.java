@@ -0,0 +1,21 @@
+/**
+ * Decaptcher able to tell how sure it is of each character of its answer, so
+ * the caller can decide to accept, retry or escalate the answer.
+ */
+public interface DetailedDecaptcher extends Decaptcher {
+
+	/**
+	 * Identifies the captcha keeping the prediction of every segmented char,
+	 * including the ones below the threshold.
+	 * 
+	 * @param captchaImage
+	 * @return
+	 */
+	public CaptchaPrediction decapchaDetailed(byte[] captchaImage);
+
+	@Override
+	public default String decapcha(byte[] captchaImage) {
+		return decapchaDetailed(captchaImage).text();
+	}
+
+}
@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Decaptcher running the whole pipeline on the raw captcha bytes in one call.
+ *
+ * The captcha is decoded exactly once. Thresholding, contour extraction and
+ * crop and resize of each character stay in OpenCV native memory, the resized
+ * characters being written straight into one stacked native batch, which is
+ * copied once into the model input tensor. Unlike {@link DLDecaptcher}, there is
+ * no per character buffer on the Java heap.
+ *
+ * Scratch Mats and buffers are kept per thread and reused from one captcha to
+ * the next; they live as long as their thread.
+ */
+public class FusedDecaptcher implements DetailedDecaptcher {
+
+	private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+	private final CaptchaImageProcessor processor;
+	private final CaptchaClassifier classifier;
+
+	/**
+	 * 
+	 * @param threshold
+	 *            Minimum probability to accept a character as answer of
+	 *            classification.
+	 */
+	public FusedDecaptcher(float threshold) {
+		this(new CaptchaImageProcessor(), new CaptchaClassifier(threshold));
+	}
+
+	/**
+	 * 
+	 * @param processor
+	 *            Processor thresholding and segmenting the captcha image.
+	 * @param classifier
+	 *            Classifier of the segmented chars.
+	 */
+	public FusedDecaptcher(CaptchaImageProcessor processor, CaptchaClassifier classifier) {
+		this.processor = processor;
+		this.classifier = classifier;
+	}
+
+	@Override
+	public String decapcha(byte[] captchaImage) {
+		return decapchaDetailed(captchaImage).text();
+	}
+
+	/**
+	 * Identifies the captcha keeping the prediction of every segmented char, see
+	 * {@link DLDecaptcher#decapchaDetailed(byte[])}.
+	 * 
+	 * @param captchaImage
+	 * @return
+	 */
+	@Override
+	public CaptchaPrediction decapchaDetailed(byte[] captchaImage) {
+		Scratch scratch = SCRATCH.get();
+
+		try (MatScope scope = new MatScope()) {
+			long start = System.nanoTime();
+			Mat captchaImageMat = scope.add(scratch.decode(captchaImage));
+			Metrics.recordSince(PipelineMetrics.Stage.DECODE, start);
+
+			start = System.nanoTime();
+			Mat threshCaptcha = scope.add(processor.thresholdCaptchaImage(captchaImageMat));
+			Metrics.recordSince(PipelineMetrics.Stage.THRESHOLD, start);
+
+			double minHeight = 5;
+			double minWidth = 5;
+
+			start = System.nanoTime();
+			List<Rect> boundingRectangles = processor.findCharacterRects(threshCaptcha, minHeight, minWidth);
+			Metrics.recordSince(PipelineMetrics.Stage.SEGMENT, start);
+
+			Rect[] boundingBoxes = boundingRectangles.toArray(new Rect[boundingRectangles.size()]);
+			Metrics.increment(PipelineMetrics.Counter.CAPTCHAS);
+			Metrics.increment(PipelineMetrics.Counter.CHARACTERS, boundingBoxes.length);
+
+			start = System.nanoTime();
+			FloatBuffer batch = scratch.stack(threshCaptcha, boundingBoxes);
+			Metrics.recordSince(PipelineMetrics.Stage.ENCODE, start);
+
+			return new CaptchaPrediction(classifier.predictStacked(batch, boundingBoxes));
+
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new CaptchaPrediction(new ArrayList<>());
+		}
+	}
+
+	/**
+	 * Buffers of a thread, grown on demand and reused.
+	 */
+	private static class Scratch {
+		private final Mat encoded = new Mat();
+		private final Mat resized = new Mat();
+		private final Mat rgb = new Mat();
+		private final Mat stacked = new Mat();
+		private float[] pixels = new float[0];
+		private FloatBuffer batch = FloatBuffer.wrap(pixels);
+
+		/**
+		 * Decode the captcha through a reusable native copy of its bytes.
+		 * 
+		 * @param captchaImage
+		 * @return decoded image, to be released by the caller
+		 */
+		private Mat decode(byte[] captchaImage) {
+			if (encoded.empty() || encoded.cols() < captchaImage.length) {
+				encoded.create(1, Math.max(captchaImage.length, 2 * encoded.cols()), CvType.CV_8UC1);
+			}
+
+			Mat bytes = encoded.submat(0, 1, 0, captchaImage.length);
+			try {
+				bytes.put(0, 0, captchaImage);
+				return Highgui.imdecode(bytes, Highgui.CV_LOAD_IMAGE_UNCHANGED);
+			} finally {
+				bytes.release();
+			}
+		}
+
+		/**
+		 * Resize each character to the model input, convert it to RGB scaled by
+		 * 1/255 and write it in place into one stacked [batch * height, width]
+		 * native Mat, then copy the whole batch at once.
+		 * 
+		 * @param imageMat
+		 *            thresholded image
+		 * @param boundingBoxes
+		 * @return pixels of all characters in [batch, height, width, channels]
+		 *         order
+		 */
+		private FloatBuffer stack(Mat imageMat, Rect[] boundingBoxes) {
+			int count = boundingBoxes.length;
+			int rows = Math.max(1, count) * CharacterImage.HEIGHT;
+			if (stacked.empty() || stacked.rows() < rows) {
+				stacked.create(Math.max(rows, 2 * stacked.rows()), CharacterImage.WIDTH, CvType.CV_32FC3);
+			}
+			if (pixels.length < stacked.rows() * CharacterImage.WIDTH * CharacterImage.CHANNELS) {
+				pixels = new float[stacked.rows() * CharacterImage.WIDTH * CharacterImage.CHANNELS];
+				batch = FloatBuffer.wrap(pixels);
+			}
+
+			Size characterSize = new Size(CharacterImage.WIDTH, CharacterImage.HEIGHT);
+			for (int i = 0; i < count; i++) {
+				Mat croppedRectMat = imageMat.submat(boundingBoxes[i]);
+				Mat target = stacked.rowRange(i * CharacterImage.HEIGHT, (i + 1) * CharacterImage.HEIGHT);
+				try {
+					Imgproc.resize(croppedRectMat, resized, characterSize, 0, 0, Imgproc.INTER_LINEAR);
+					Imgproc.cvtColor(resized, rgb,
+							resized.channels() == 1 ? Imgproc.COLOR_GRAY2RGB : Imgproc.COLOR_BGR2RGB);
+					rgb.convertTo(target, CvType.CV_32FC3, 1 / 255.0);
+				} finally {
+					target.release();
+					croppedRectMat.release();
+				}
+			}
+
+			int values = count * CharacterImage.SIZE;
+			if (count > 0) {
+				Mat used = stacked.rowRange(0, count * CharacterImage.HEIGHT);
+				try {
+					used.get(0, 0, pixels);
+				} finally {
+					used.release();
+				}
+			}
+
+			batch.clear();
+			batch.limit(values);
+			return batch;
+		}
+	}
+
+}
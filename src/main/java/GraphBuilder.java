@@ -17,7 +17,34 @@ import org.tensorflow.types.UInt8;
  */
 public class GraphBuilder {
 	GraphBuilder(Graph g) {
+		this(g, null);
+	}
+
+	/**
+	 * Builder adding its operations under a name scope, so they can be appended to a graph
+	 * imported from a GraphDef without clashing with the names of its operations.
+	 * 
+	 * @param g
+	 * @param scope
+	 */
+	GraphBuilder(Graph g, String scope) {
 		this.g = g;
+		this.scope = scope;
+	}
+
+	/**
+	 * Full name of an operation of this builder, including its scope.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	String scopedName(String name) {
+		return scope == null ? name : scope + "/" + name;
+	}
+
+	<T> Output<T> placeholder(String name, Class<T> type) {
+		return g.opBuilder("Placeholder", scopedName(name)).setAttr("dtype", DataType.fromClass(type)).build()
+				.<T>output(0);
 	}
 
 	Output<Float> div(Output<Float> x, Output<Float> y) {
@@ -38,17 +65,17 @@ public class GraphBuilder {
 
 	<T, U> Output<U> cast(Output<T> value, Class<U> type) {
 		DataType dtype = DataType.fromClass(type);
-		return g.opBuilder("Cast", "Cast").addInput(value).setAttr("DstT", dtype).build().<U>output(0);
+		return g.opBuilder("Cast", scopedName("Cast")).addInput(value).setAttr("DstT", dtype).build().<U>output(0);
 	}
 
 	Output<UInt8> decodeJpeg(Output<String> contents, long channels) {
-		return g.opBuilder("DecodeJpeg", "DecodeJpeg").addInput(contents).setAttr("channels", channels).build()
+		return g.opBuilder("DecodeJpeg", scopedName("DecodeJpeg")).addInput(contents).setAttr("channels", channels).build()
 				.<UInt8>output(0);
 	}
 
 	<T> Output<T> constant(String name, Object value, Class<T> type) {
 		try (Tensor<T> t = Tensor.<T>create(value, type)) {
-			return g.opBuilder("Const", name).setAttr("dtype", DataType.fromClass(type)).setAttr("value", t).build()
+			return g.opBuilder("Const", scopedName(name)).setAttr("dtype", DataType.fromClass(type)).setAttr("value", t).build()
 					.<T>output(0);
 		}
 	}
@@ -70,12 +97,13 @@ public class GraphBuilder {
 	}
 
 	private <T> Output<T> binaryOp(String type, Output<T> in1, Output<T> in2) {
-		return g.opBuilder(type, type).addInput(in1).addInput(in2).build().<T>output(0);
+		return g.opBuilder(type, scopedName(type)).addInput(in1).addInput(in2).build().<T>output(0);
 	}
 
 	private <T, U, V> Output<T> binaryOp3(String type, Output<U> in1, Output<V> in2) {
-		return g.opBuilder(type, type).addInput(in1).addInput(in2).build().<T>output(0);
+		return g.opBuilder(type, scopedName(type)).addInput(in1).addInput(in2).build().<T>output(0);
 	}
 
 	private Graph g;
+	private String scope;
 }
\ No newline at end of file
@@ -0,0 +1,53 @@
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pipeline metrics kept in memory: one {@link LatencyHistogram} per stage and
+ * one counter per event.
+ */
+public class HistogramMetrics implements PipelineMetrics {
+
+	private final Map<Stage, LatencyHistogram> latencies = new EnumMap<>(Stage.class);
+	private final Map<Counter, LongAdder> counters = new EnumMap<>(Counter.class);
+
+	public HistogramMetrics() {
+		for (Stage stage : Stage.values()) {
+			latencies.put(stage, new LatencyHistogram());
+		}
+		for (Counter counter : Counter.values()) {
+			counters.put(counter, new LongAdder());
+		}
+	}
+
+	@Override
+	public void recordLatency(Stage stage, long nanos) {
+		latencies.get(stage).record(nanos);
+	}
+
+	@Override
+	public void increment(Counter counter, long delta) {
+		counters.get(counter).add(delta);
+	}
+
+	public LatencyHistogram latency(Stage stage) {
+		return latencies.get(stage);
+	}
+
+	public long count(Counter counter) {
+		return counters.get(counter).sum();
+	}
+
+	/**
+	 * Forget all measurements.
+	 */
+	public void reset() {
+		for (LatencyHistogram histogram : latencies.values()) {
+			histogram.reset();
+		}
+		for (LongAdder counter : counters.values()) {
+			counter.reset();
+		}
+	}
+
+}
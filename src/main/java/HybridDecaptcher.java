@@ -0,0 +1,278 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decaptcher solving captchas with the local CNN first and escalating to a
+ * remote solver, e.g. {@link TwoCaptchaDecaptcher}, only the captchas the CNN
+ * is not sure about: a character below the classifier threshold, or a number
+ * of segmented characters different from the expected captcha length.
+ *
+ * Remote calls are asynchronous and rate limited, both in number of captchas
+ * waiting for a remote answer and in minimum interval between two of them.
+ * Escalations over the limits, and failed remote calls, are answered with the
+ * local answer, so the paid service is never flooded. {@link #solveAsync(byte[])}
+ * tells which answers are such fallbacks, for callers preferring to retry or
+ * fail them.
+ */
+public class HybridDecaptcher implements AsyncDecaptcher {
+
+	private final DetailedDecaptcher local;
+	private final AsyncDecaptcher remote;
+	private final int expectedLength;
+	private final Semaphore remotePermits;
+	private final long minRemoteIntervalNanos;
+	private final AtomicLong nextRemoteCall = new AtomicLong(System.nanoTime());
+
+	private final AtomicLong localCount = new AtomicLong();
+	private final AtomicLong escalatedCount = new AtomicLong();
+	private final AtomicLong rateLimitedCount = new AtomicLong();
+	private final AtomicLong remoteFailureCount = new AtomicLong();
+
+	/**
+	 *
+	 * @param local
+	 *            local decaptcher, tried first, e.g. a {@link DLDecaptcher}
+	 * @param remote
+	 *            remote decaptcher, for the captchas the local one is not sure
+	 *            about
+	 * @param expectedLength
+	 *            number of characters of a captcha, 0 if it varies
+	 * @param maxPendingRemote
+	 *            maximum number of captchas waiting for a remote answer
+	 * @param minRemoteInterval
+	 *            minimum time between two remote calls
+	 * @param unit
+	 *            time unit of minRemoteInterval
+	 */
+	public HybridDecaptcher(DetailedDecaptcher local, AsyncDecaptcher remote, int expectedLength, int maxPendingRemote,
+			long minRemoteInterval, TimeUnit unit) {
+		if (maxPendingRemote < 1) {
+			throw new IllegalArgumentException("Max pending remote captchas must be positive: " + maxPendingRemote);
+		}
+
+		this.local = local;
+		this.remote = remote;
+		this.expectedLength = expectedLength;
+		this.remotePermits = new Semaphore(maxPendingRemote);
+		this.minRemoteIntervalNanos = unit.toNanos(minRemoteInterval);
+	}
+
+	@Override
+	public String decapcha(byte[] captchaImage) {
+		try {
+			return decapchaAsync(captchaImage).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Solve the captcha locally on the calling thread and, if escalated, return
+	 * without waiting for the remote answer. Rate limited and failed escalations
+	 * are completed with the local answer, see {@link #solveAsync(byte[])} to
+	 * tell them apart.
+	 */
+	@Override
+	public CompletableFuture<String> decapchaAsync(byte[] captchaImage) {
+		return solveAsync(captchaImage).thenApply(Answer::text);
+	}
+
+	/**
+	 * Solve the captcha like {@link #decapchaAsync(byte[])}, telling who answered
+	 * it and whether the answer is a local fallback of an escalation.
+	 * 
+	 * @param captchaImage
+	 * @return future completed with the answer of the captcha, never exceptionally
+	 *         because of the remote decaptcher
+	 */
+	public CompletableFuture<Answer> solveAsync(byte[] captchaImage) {
+		CaptchaPrediction prediction = local.decapchaDetailed(captchaImage);
+		String localAnswer = prediction.text();
+
+		if (!shouldEscalate(prediction)) {
+			localCount.incrementAndGet();
+			return CompletableFuture.completedFuture(new Answer(localAnswer, Source.LOCAL, null));
+		}
+
+		if (!acquireRemoteCall()) {
+			rateLimitedCount.incrementAndGet();
+			return CompletableFuture.completedFuture(new Answer(localAnswer, Source.RATE_LIMITED, null));
+		}
+
+		escalatedCount.incrementAndGet();
+		CompletableFuture<String> remoteAnswer;
+		try {
+			remoteAnswer = remote.decapchaAsync(captchaImage);
+		} catch (RuntimeException e) {
+			remoteAnswer = new CompletableFuture<>();
+			remoteAnswer.completeExceptionally(e);
+		}
+
+		return remoteAnswer.handle((answer, error) -> {
+			remotePermits.release();
+			if (error != null || answer == null || answer.isEmpty()) {
+				remoteFailureCount.incrementAndGet();
+				return new Answer(localAnswer, Source.REMOTE_FAILED, error instanceof CompletionException
+						? error.getCause() : error);
+			}
+			return new Answer(answer, Source.REMOTE, null);
+		});
+	}
+
+	/**
+	 * Whether the local prediction is not sure enough to be returned.
+	 *
+	 * @param prediction
+	 * @return
+	 */
+	private boolean shouldEscalate(CaptchaPrediction prediction) {
+		if (expectedLength > 0 && prediction.characters().size() != expectedLength) {
+			return true;
+		}
+		return !prediction.isAccepted();
+	}
+
+	/**
+	 * Take a remote call permit, if both the pending and interval limits allow
+	 * it.
+	 *
+	 * @return
+	 */
+	private boolean acquireRemoteCall() {
+		if (!remotePermits.tryAcquire()) {
+			return false;
+		}
+
+		while (true) {
+			long now = System.nanoTime();
+			long next = nextRemoteCall.get();
+			if (now - next < 0) {
+				remotePermits.release();
+				return false;
+			}
+			if (nextRemoteCall.compareAndSet(next, now + minRemoteIntervalNanos)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Number of captchas answered by the local decaptcher alone.
+	 *
+	 * @return
+	 */
+	public long localCount() {
+		return localCount.get();
+	}
+
+	/**
+	 * Number of captchas sent to the remote decaptcher.
+	 *
+	 * @return
+	 */
+	public long escalatedCount() {
+		return escalatedCount.get();
+	}
+
+	/**
+	 * Number of captchas that should have been escalated but were answered
+	 * locally because of the rate limits.
+	 *
+	 * @return
+	 */
+	public long rateLimitedCount() {
+		return rateLimitedCount.get();
+	}
+
+	/**
+	 * Number of escalated captchas the remote decaptcher failed to answer, which
+	 * were answered locally.
+	 *
+	 * @return
+	 */
+	public long remoteFailureCount() {
+		return remoteFailureCount.get();
+	}
+
+	/**
+	 * Who answered a captcha.
+	 */
+	public enum Source {
+		/** The local decaptcher was sure of its answer. */
+		LOCAL,
+		/** The remote decaptcher answered the escalated captcha. */
+		REMOTE,
+		/** Local fallback of an escalation over the rate limits. */
+		RATE_LIMITED,
+		/** Local fallback of an escalation the remote decaptcher failed. */
+		REMOTE_FAILED
+	}
+
+	/**
+	 * Answer of a captcha along with who gave it.
+	 */
+	public static class Answer {
+
+		private final String text;
+		private final Source source;
+		private final Throwable remoteFailure;
+
+		private Answer(String text, Source source, Throwable remoteFailure) {
+			this.text = text;
+			this.source = source;
+			this.remoteFailure = remoteFailure;
+		}
+
+		/**
+		 * Text of the captcha.
+		 * 
+		 * @return
+		 */
+		public String text() {
+			return text;
+		}
+
+		/**
+		 * Who answered the captcha.
+		 * 
+		 * @return
+		 */
+		public Source source() {
+			return source;
+		}
+
+		/**
+		 * Whether the captcha should have been answered remotely, but got the
+		 * local answer instead.
+		 * 
+		 * @return
+		 */
+		public boolean isFallback() {
+			return source == Source.RATE_LIMITED || source == Source.REMOTE_FAILED;
+		}
+
+		/**
+		 * Failure of the remote decaptcher, null unless the source is
+		 * {@link Source#REMOTE_FAILED} because of an error rather than of an
+		 * empty answer.
+		 * 
+		 * @return
+		 */
+		public Throwable remoteFailure() {
+			return remoteFailure;
+		}
+
+		@Override
+		public String toString() {
+			return text + " (" + source + ")";
+		}
+
+	}
+
+}
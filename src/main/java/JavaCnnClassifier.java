@@ -0,0 +1,526 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.opencv.core.Rect;
+import org.tensorflow.framework.GraphDef;
+import org.tensorflow.framework.NodeDef;
+import org.tensorflow.framework.TensorProto;
+import org.tensorflow.framework.TensorShapeProto;
+
+/**
+ * Runs the CNN model in plain Java, without Tensorflow.
+ *
+ * The model is tiny: two 3x3 VALID convolutions with relu, each followed by a
+ * 2x2 max pooling, a dense relu layer and a softmax layer, over 20x20x3
+ * inputs. At this size the JNI calls and tensor copies of Tensorflow cost more
+ * than the math itself. The frozen weights are read once from the GraphDef, and
+ * the forward pass runs over float arrays preallocated per thread, with inner
+ * loops over contiguous output channels the JIT can vectorize. Classifying
+ * normalized pixels allocates nothing but the prediction.
+ *
+ * Images given as JPEG bytes are decoded with ImageIO and resized like the
+ * resize_bilinear op of Tensorflow (align_corners false), so probabilities may
+ * differ slightly from {@link CaptchaClassifier} on that path, the JPEG
+ * decoders being different.
+ */
+public class JavaCnnClassifier implements Classifier<String> {
+
+	private static final String FIRST_CONV = "FirstConv2DLayer";
+	private static final String SECOND_CONV = "SecondConv2DLayer";
+	private static final String HIDDEN = "dense_1";
+	private static final String OUTPUT = "Probabilities";
+
+	private final float threshold;
+	private final int topK;
+	private final CnnModel model;
+
+	private final Layer firstConv;
+	private final Layer secondConv;
+	private final Layer hidden;
+	private final Layer output;
+
+	// Sizes of the feature maps
+	private final int firstConvSize;
+	private final int firstPoolSize;
+	private final int secondConvSize;
+	private final int secondPoolSize;
+
+	private final ThreadLocal<Workspace> workspaces = ThreadLocal.withInitial(Workspace::new);
+
+	/**
+	 * Creates a classifier over the model bundled in the classpath.
+	 * 
+	 * @param threshold
+	 *            Minimum probability to accept a character as answer of
+	 *            classification.
+	 */
+	public JavaCnnClassifier(float threshold) {
+		this(threshold, ModelRegistry.shared());
+	}
+
+	/**
+	 * 
+	 * @param threshold
+	 *            Minimum probability to accept a character as answer of
+	 *            classification.
+	 * @param registry
+	 *            Registry whose current model is retained while its weights are
+	 *            read. Later swaps do not change the weights of the classifier.
+	 */
+	public JavaCnnClassifier(float threshold, ModelRegistry registry) {
+		this(threshold, registry, CaptchaClassifier.DEFAULT_TOP_K);
+	}
+
+	/**
+	 * 
+	 * @param threshold
+	 *            Minimum probability to accept a character as answer of
+	 *            classification.
+	 * @param registry
+	 *            Registry whose current model is retained while its weights are
+	 *            read. Later swaps do not change the weights of the classifier.
+	 * @param topK
+	 *            Number of most probable labels kept in each
+	 *            {@link CharacterPrediction}.
+	 */
+	public JavaCnnClassifier(float threshold, ModelRegistry registry, int topK) {
+		this(threshold, registry.run(ModelWeights::new), topK);
+	}
+
+	/**
+	 * 
+	 * @param threshold
+	 *            Minimum probability to accept a character as answer of
+	 *            classification.
+	 * @param model
+	 *            Model whose weights are read. Its Tensorflow sessions are not
+	 *            used.
+	 */
+	public JavaCnnClassifier(float threshold, CnnModel model) {
+		this(threshold, model, CaptchaClassifier.DEFAULT_TOP_K);
+	}
+
+	/**
+	 * 
+	 * @param threshold
+	 *            Minimum probability to accept a character as answer of
+	 *            classification.
+	 * @param model
+	 *            Model whose weights are read. Its Tensorflow sessions are not
+	 *            used.
+	 * @param topK
+	 *            Number of most probable labels kept in each
+	 *            {@link CharacterPrediction}.
+	 */
+	public JavaCnnClassifier(float threshold, CnnModel model, int topK) {
+		this(threshold, new ModelWeights(model), topK);
+	}
+
+	private JavaCnnClassifier(float threshold, ModelWeights weights, int topK) {
+		if (topK < 1) {
+			throw new IllegalArgumentException("Top k must be positive: " + topK);
+		}
+		this.threshold = threshold;
+		this.topK = topK;
+		this.model = weights.model;
+
+		this.firstConv = weights.layers.get(FIRST_CONV);
+		this.secondConv = weights.layers.get(SECOND_CONV);
+		this.hidden = weights.layers.get(HIDDEN);
+		this.output = weights.layers.get(OUTPUT);
+
+		// VALID convolutions and pooling
+		this.firstConvSize = CharacterImage.HEIGHT - firstConv.kernelSize + 1;
+		this.firstPoolSize = firstConvSize / 2;
+		this.secondConvSize = firstPoolSize - secondConv.kernelSize + 1;
+		this.secondPoolSize = secondConvSize / 2;
+
+		if (firstConv.inputs != CharacterImage.CHANNELS || secondConv.inputs != firstConv.outputs
+				|| hidden.inputs != secondPoolSize * secondPoolSize * secondConv.outputs
+				|| output.inputs != hidden.outputs || output.outputs != model.labelCount()) {
+			throw new IllegalArgumentException("Model " + model.version() + " does not match the expected layers");
+		}
+	}
+
+	/**
+	 * Weights of a model, read while the model is retained. Only the labels of
+	 * the model are used afterwards, which stay valid once it is retired.
+	 */
+	private static class ModelWeights {
+		private final CnnModel model;
+		private final Map<String, Layer> layers;
+
+		private ModelWeights(CnnModel model) {
+			this.model = model;
+			this.layers = readWeights(model.graphDef());
+		}
+	}
+
+	/**
+	 * Read the frozen weights and biases of each layer from the Const nodes of
+	 * the graph.
+	 * 
+	 * @param graphDef
+	 * @return layers by name
+	 */
+	private static Map<String, Layer> readWeights(byte[] graphDef) {
+		Map<String, TensorProto> constants = new HashMap<>();
+		try {
+			for (NodeDef node : GraphDef.parseFrom(graphDef).getNodeList()) {
+				if (node.getOp().equals("Const")) {
+					constants.put(node.getName(), node.getAttrOrThrow("value").getTensor());
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Invalid model graph", e);
+		}
+
+		Map<String, Layer> layers = new HashMap<>();
+		for (String name : new String[] { FIRST_CONV, SECOND_CONV, HIDDEN, OUTPUT }) {
+			TensorProto kernel = constants.get(name + "/kernel");
+			TensorProto bias = constants.get(name + "/bias");
+			if (kernel == null || bias == null) {
+				throw new IllegalArgumentException("Weights of layer " + name + " not found in the model graph");
+			}
+			layers.put(name, new Layer(shape(kernel), floats(kernel), floats(bias)));
+		}
+		return layers;
+	}
+
+	private static int[] shape(TensorProto tensor) {
+		List<TensorShapeProto.Dim> dims = tensor.getTensorShape().getDimList();
+		int[] shape = new int[dims.size()];
+		for (int i = 0; i < shape.length; i++) {
+			shape[i] = (int) dims.get(i).getSize();
+		}
+		return shape;
+	}
+
+	private static float[] floats(TensorProto tensor) {
+		int size = 1;
+		for (int dim : shape(tensor)) {
+			size *= dim;
+		}
+
+		float[] values = new float[size];
+		if (!tensor.getTensorContent().isEmpty()) {
+			FloatBuffer content = tensor.getTensorContent().asReadOnlyByteBuffer().order(ByteOrder.LITTLE_ENDIAN)
+					.asFloatBuffer();
+			content.get(values);
+		} else {
+			// A single value is repeated over the whole tensor
+			for (int i = 0; i < size; i++) {
+				values[i] = tensor.getFloatVal(Math.min(i, tensor.getFloatValCount() - 1));
+			}
+		}
+		return values;
+	}
+
+	@Override
+	public String classify(byte[] imageBytes) {
+		return label(predict(imageBytes));
+	}
+
+	@Override
+	public List<String> classifyPixels(List<CharacterImage> characters) {
+		List<String> classifiedChars = new ArrayList<>(characters.size());
+		for (CharacterPrediction prediction : predictPixels(characters)) {
+			classifiedChars.add(label(prediction));
+		}
+		return classifiedChars;
+	}
+
+	/**
+	 * Classify a character image, keeping the probabilities of its most probable
+	 * labels.
+	 * 
+	 * @param imageBytes
+	 * @return prediction, without bounding box
+	 */
+	public CharacterPrediction predict(byte[] imageBytes) {
+		BufferedImage image;
+		try {
+			image = ImageIO.read(new ByteArrayInputStream(imageBytes));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		if (image == null) {
+			throw new IllegalArgumentException("Unsupported image format");
+		}
+
+		Workspace workspace = workspaces.get();
+		workspace.resize(image.getRaster());
+		return prediction(forward(workspace), null);
+	}
+
+	/**
+	 * Classify characters already normalized by the image processor.
+	 * 
+	 * @param characters
+	 * @return prediction of each character, with its bounding box
+	 */
+	public List<CharacterPrediction> predictPixels(List<CharacterImage> characters) {
+		Workspace workspace = workspaces.get();
+		List<CharacterPrediction> predictions = new ArrayList<>(characters.size());
+		for (CharacterImage character : characters) {
+			character.pixels().get(workspace.input);
+			predictions.add(prediction(forward(workspace), character.boundingBox()));
+		}
+		return predictions;
+	}
+
+	/**
+	 * Prediction of a character from the output of the model.
+	 * 
+	 * @param probabilities
+	 * @param boundingBox
+	 * @return prediction, accepted if max probability is above threshold
+	 */
+	private CharacterPrediction prediction(float[] probabilities, Rect boundingBox) {
+		CharacterPrediction prediction = CharacterPrediction.fromProbabilities(probabilities, model::label, topK,
+				threshold, boundingBox);
+		if (!prediction.isAccepted()) {
+			Metrics.increment(PipelineMetrics.Counter.REJECTED_CHARACTERS);
+		}
+		return prediction;
+	}
+
+	/**
+	 * View of this classifier returning full predictions instead of labels.
+	 * 
+	 * @return
+	 */
+	public Classifier<CharacterPrediction> predictor() {
+		return new Classifier<CharacterPrediction>() {
+			@Override
+			public CharacterPrediction classify(byte[] imageBytes) {
+				return predict(imageBytes);
+			}
+
+			@Override
+			public List<CharacterPrediction> classifyPixels(List<CharacterImage> characters) {
+				return predictPixels(characters);
+			}
+		};
+	}
+
+	private static String label(CharacterPrediction prediction) {
+		return prediction.isAccepted() ? prediction.label() : null;
+	}
+
+	/**
+	 * Run the model over the input of the workspace.
+	 * 
+	 * @param workspace
+	 * @return probabilities, valid until the next forward pass of the thread
+	 */
+	private float[] forward(Workspace workspace) {
+		long start = System.nanoTime();
+
+		conv2dRelu(workspace.input, CharacterImage.HEIGHT, CharacterImage.CHANNELS, firstConv, firstConvSize,
+				workspace.firstConv);
+		maxPool(workspace.firstConv, firstConvSize, firstConv.outputs, firstPoolSize, workspace.firstPool);
+		conv2dRelu(workspace.firstPool, firstPoolSize, firstConv.outputs, secondConv, secondConvSize,
+				workspace.secondConv);
+		maxPool(workspace.secondConv, secondConvSize, secondConv.outputs, secondPoolSize, workspace.secondPool);
+		dense(workspace.secondPool, hidden, workspace.hidden, true);
+		dense(workspace.hidden, output, workspace.probabilities, false);
+		softmax(workspace.probabilities);
+
+		Metrics.recordSince(PipelineMetrics.Stage.INFERENCE, start);
+		return workspace.probabilities;
+	}
+
+	/**
+	 * VALID convolution with stride 1 of a square NHWC feature map, followed by
+	 * relu.
+	 */
+	private static void conv2dRelu(float[] in, int inSize, int inChannels, Layer layer, int outSize, float[] out) {
+		int outChannels = layer.outputs;
+		int kernelSize = layer.kernelSize;
+		float[] kernel = layer.weights;
+
+		for (int oy = 0; oy < outSize; oy++) {
+			for (int ox = 0; ox < outSize; ox++) {
+				int outAt = (oy * outSize + ox) * outChannels;
+				System.arraycopy(layer.bias, 0, out, outAt, outChannels);
+
+				for (int ky = 0; ky < kernelSize; ky++) {
+					for (int kx = 0; kx < kernelSize; kx++) {
+						int inAt = ((oy + ky) * inSize + ox + kx) * inChannels;
+						int kernelAt = (ky * kernelSize + kx) * inChannels * outChannels;
+
+						for (int ci = 0; ci < inChannels; ci++) {
+							float value = in[inAt + ci];
+							int weightsAt = kernelAt + ci * outChannels;
+							for (int co = 0; co < outChannels; co++) {
+								out[outAt + co] += value * kernel[weightsAt + co];
+							}
+						}
+					}
+				}
+
+				for (int co = 0; co < outChannels; co++) {
+					out[outAt + co] = Math.max(0f, out[outAt + co]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 2x2 VALID max pooling with stride 2 of a square NHWC feature map.
+	 */
+	private static void maxPool(float[] in, int inSize, int channels, int outSize, float[] out) {
+		for (int oy = 0; oy < outSize; oy++) {
+			for (int ox = 0; ox < outSize; ox++) {
+				int outAt = (oy * outSize + ox) * channels;
+				int topLeft = (2 * oy * inSize + 2 * ox) * channels;
+				int topRight = topLeft + channels;
+				int bottomLeft = topLeft + inSize * channels;
+				int bottomRight = bottomLeft + channels;
+
+				for (int c = 0; c < channels; c++) {
+					out[outAt + c] = Math.max(Math.max(in[topLeft + c], in[topRight + c]),
+							Math.max(in[bottomLeft + c], in[bottomRight + c]));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fully connected layer, with weights in [inputs, outputs] order.
+	 */
+	private static void dense(float[] in, Layer layer, float[] out, boolean relu) {
+		int outputs = layer.outputs;
+		float[] weights = layer.weights;
+		System.arraycopy(layer.bias, 0, out, 0, outputs);
+
+		for (int i = 0; i < layer.inputs; i++) {
+			float value = in[i];
+			int weightsAt = i * outputs;
+			for (int o = 0; o < outputs; o++) {
+				out[o] += value * weights[weightsAt + o];
+			}
+		}
+
+		if (relu) {
+			for (int o = 0; o < outputs; o++) {
+				out[o] = Math.max(0f, out[o]);
+			}
+		}
+	}
+
+	private static void softmax(float[] logits) {
+		float max = logits[0];
+		for (int i = 1; i < logits.length; i++) {
+			max = Math.max(max, logits[i]);
+		}
+
+		float sum = 0;
+		for (int i = 0; i < logits.length; i++) {
+			logits[i] = (float) Math.exp(logits[i] - max);
+			sum += logits[i];
+		}
+		for (int i = 0; i < logits.length; i++) {
+			logits[i] /= sum;
+		}
+	}
+
+	/**
+	 * Weights and bias of a convolution, kernel [height, width, inputs, outputs],
+	 * or of a dense layer, weights [inputs, outputs].
+	 */
+	private static class Layer {
+		private final float[] weights;
+		private final float[] bias;
+		private final int kernelSize;
+		private final int inputs;
+		private final int outputs;
+
+		private Layer(int[] shape, float[] weights, float[] bias) {
+			this.weights = weights;
+			this.bias = bias;
+			this.kernelSize = shape.length == 4 ? shape[0] : 1;
+			this.inputs = shape[shape.length - 2];
+			this.outputs = shape[shape.length - 1];
+		}
+	}
+
+	/**
+	 * Buffers of the forward pass of a thread.
+	 */
+	private class Workspace {
+		private final float[] input = new float[CharacterImage.SIZE];
+		private final float[] firstConv = new float[firstConvSize * firstConvSize * JavaCnnClassifier.this.firstConv.outputs];
+		private final float[] firstPool = new float[firstPoolSize * firstPoolSize * JavaCnnClassifier.this.firstConv.outputs];
+		private final float[] secondConv = new float[secondConvSize * secondConvSize * JavaCnnClassifier.this.secondConv.outputs];
+		private final float[] secondPool = new float[secondPoolSize * secondPoolSize * JavaCnnClassifier.this.secondConv.outputs];
+		private final float[] hidden = new float[JavaCnnClassifier.this.hidden.outputs];
+		private final float[] probabilities = new float[output.outputs];
+		private int[] samples = new int[0];
+
+		/**
+		 * Resize an image to the model input like the resize_bilinear op of
+		 * Tensorflow with align_corners false, scaling colors by 1/255.
+		 * 
+		 * @param raster
+		 *            1-channel (grayscale) or 3-channel (RGB) image
+		 */
+		private void resize(Raster raster) {
+			int width = raster.getWidth();
+			int height = raster.getHeight();
+			int bands = raster.getNumBands();
+			if (bands != 1 && bands != 3) {
+				throw new IllegalArgumentException("Unsupported number of channels: " + bands);
+			}
+			if (samples.length < width * height * bands) {
+				samples = new int[width * height * bands];
+			}
+
+			// Raw samples, skipping the color space conversion of BufferedImage.getRGB
+			raster.getPixels(0, 0, width, height, samples);
+
+			float heightScale = (float) height / CharacterImage.HEIGHT;
+			float widthScale = (float) width / CharacterImage.WIDTH;
+
+			for (int y = 0; y < CharacterImage.HEIGHT; y++) {
+				float inY = y * heightScale;
+				int top = (int) inY;
+				int bottom = Math.min(top + 1, height - 1);
+				float yLerp = inY - top;
+
+				for (int x = 0; x < CharacterImage.WIDTH; x++) {
+					float inX = x * widthScale;
+					int left = (int) inX;
+					int right = Math.min(left + 1, width - 1);
+					float xLerp = inX - left;
+
+					for (int c = 0; c < CharacterImage.CHANNELS; c++) {
+						int band = bands == 1 ? 0 : c;
+						float topLeft = samples[(top * width + left) * bands + band];
+						float topRight = samples[(top * width + right) * bands + band];
+						float bottomLeft = samples[(bottom * width + left) * bands + band];
+						float bottomRight = samples[(bottom * width + right) * bands + band];
+
+						float topValue = topLeft + (topRight - topLeft) * xLerp;
+						float bottomValue = bottomLeft + (bottomRight - bottomLeft) * xLerp;
+						input[(y * CharacterImage.WIDTH + x) * CharacterImage.CHANNELS + c] = (topValue
+								+ (bottomValue - topValue) * yLerp) / 255f;
+					}
+				}
+			}
+		}
+	}
+
+}
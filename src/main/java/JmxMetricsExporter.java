@@ -0,0 +1,141 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes {@link HistogramMetrics} as a read-only MBean, so the pipeline can
+ * be watched with JConsole, VisualVM or any JMX collector.
+ *
+ * Each stage has Count, MeanMicros, P50Micros, P90Micros, P99Micros and
+ * MaxMicros attributes, e.g. ThresholdP99Micros, and each counter one
+ * attribute, e.g. RejectedCharacters. The resetMetrics operation clears all of
+ * them.
+ */
+public class JmxMetricsExporter implements DynamicMBean {
+
+	public static final String DEFAULT_NAME = "captcha:type=PipelineMetrics";
+
+	private final HistogramMetrics metrics;
+	private final Map<String, Supplier<Object>> attributes = new LinkedHashMap<>();
+	private final MBeanInfo info;
+
+	public JmxMetricsExporter(HistogramMetrics metrics) {
+		this.metrics = metrics;
+
+		List<MBeanAttributeInfo> attributeInfos = new ArrayList<>();
+		for (PipelineMetrics.Stage stage : PipelineMetrics.Stage.values()) {
+			LatencyHistogram histogram = metrics.latency(stage);
+			String prefix = camelCase(stage.name());
+			addAttribute(attributeInfos, prefix + "Count", "long", histogram::count);
+			addAttribute(attributeInfos, prefix + "MeanMicros", "double", () -> histogram.mean() / 1000);
+			addAttribute(attributeInfos, prefix + "P50Micros", "long", () -> histogram.percentile(0.5) / 1000);
+			addAttribute(attributeInfos, prefix + "P90Micros", "long", () -> histogram.percentile(0.9) / 1000);
+			addAttribute(attributeInfos, prefix + "P99Micros", "long", () -> histogram.percentile(0.99) / 1000);
+			addAttribute(attributeInfos, prefix + "MaxMicros", "long", () -> histogram.max() / 1000);
+		}
+		for (PipelineMetrics.Counter counter : PipelineMetrics.Counter.values()) {
+			addAttribute(attributeInfos, camelCase(counter.name()), "long", () -> metrics.count(counter));
+		}
+
+		MBeanOperationInfo reset = new MBeanOperationInfo("resetMetrics", "Forget all measurements", null, "void",
+				MBeanOperationInfo.ACTION);
+
+		this.info = new MBeanInfo(getClass().getName(), "Decaptcha pipeline metrics",
+				attributeInfos.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[] { reset }, null);
+	}
+
+	/**
+	 * Register the metrics on the platform MBean server under
+	 * {@link #DEFAULT_NAME}.
+	 *
+	 * @param metrics
+	 * @return name of the registered MBean
+	 * @throws JMException
+	 */
+	public static ObjectName register(HistogramMetrics metrics) throws JMException {
+		ObjectName name = new ObjectName(DEFAULT_NAME);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(name)) {
+			server.unregisterMBean(name);
+		}
+		server.registerMBean(new JmxMetricsExporter(metrics), name);
+		return name;
+	}
+
+	private void addAttribute(List<MBeanAttributeInfo> infos, String name, String type, Supplier<Object> value) {
+		attributes.put(name, value);
+		infos.add(new MBeanAttributeInfo(name, type, name, true, false, false));
+	}
+
+	/**
+	 * REMOTE_ROUND_TRIP to RemoteRoundTrip
+	 */
+	private static String camelCase(String constant) {
+		StringBuilder name = new StringBuilder();
+		for (String word : constant.split("_")) {
+			name.append(word.charAt(0)).append(word.substring(1).toLowerCase());
+		}
+		return name.toString();
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Supplier<Object> value = attributes.get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value.get();
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] names) {
+		AttributeList list = new AttributeList();
+		for (String name : names) {
+			Supplier<Object> value = attributes.get(name);
+			if (value != null) {
+				list.add(new Attribute(name, value.get()));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Read-only attribute: " + attribute.getName());
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		if ("resetMetrics".equals(actionName)) {
+			metrics.reset();
+			return null;
+		}
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		return info;
+	}
+
+}
@@ -0,0 +1,75 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Mat;
+
+/**
+ * Scope owning OpenCV Mats allocated while processing an image.
+ *
+ * The native buffer of a Mat is only freed when the Java wrapper is finalized
+ * by the garbage collector, which knows nothing of the native memory behind
+ * it. Mats added to a scope are released deterministically when the scope is
+ * closed, in reverse order of allocation:
+ *
+ * <pre>
+ * try (MatScope scope = new MatScope()) {
+ * 	Mat blur = scope.newMat();
+ * 	...
+ * }
+ * </pre>
+ */
+public class MatScope implements AutoCloseable {
+
+	private final List<Mat> mats = new ArrayList<>();
+
+	/**
+	 * Add a Mat to the scope.
+	 *
+	 * @param mat
+	 * @return the same Mat
+	 */
+	public <M extends Mat> M add(M mat) {
+		if (mat != null) {
+			mats.add(mat);
+		}
+		return mat;
+	}
+
+	/**
+	 * Create an empty Mat owned by the scope.
+	 *
+	 * @return
+	 */
+	public Mat newMat() {
+		return add(new Mat());
+	}
+
+	/**
+	 * Take a Mat out of the scope, so it outlives it. The caller becomes
+	 * responsible for releasing it.
+	 *
+	 * @param mat
+	 * @return the same Mat
+	 */
+	public <M extends Mat> M keep(M mat) {
+		for (int i = mats.size() - 1; i >= 0; i--) {
+			if (mats.get(i) == mat) {
+				mats.remove(i);
+				break;
+			}
+		}
+		return mat;
+	}
+
+	/**
+	 * Release all Mats of the scope.
+	 */
+	@Override
+	public void close() {
+		for (int i = mats.size() - 1; i >= 0; i--) {
+			mats.get(i).release();
+		}
+		mats.clear();
+	}
+
+}
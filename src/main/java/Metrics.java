@@ -0,0 +1,44 @@
+/**
+ * Holds the {@link PipelineMetrics} used by the decaptcha pipeline. Metrics are
+ * disabled until an implementation is set, e.g. on start up:
+ *
+ * <pre>
+ * HistogramMetrics metrics = new HistogramMetrics();
+ * Metrics.set(metrics);
+ * JmxMetricsExporter.register(metrics);
+ * </pre>
+ */
+public final class Metrics {
+
+	private static volatile PipelineMetrics metrics = PipelineMetrics.NONE;
+
+	private Metrics() {
+	}
+
+	public static PipelineMetrics get() {
+		return metrics;
+	}
+
+	public static void set(PipelineMetrics metrics) {
+		Metrics.metrics = metrics == null ? PipelineMetrics.NONE : metrics;
+	}
+
+	/**
+	 * Record the time elapsed since start, as given by System.nanoTime().
+	 * 
+	 * @param stage
+	 * @param start
+	 */
+	public static void recordSince(PipelineMetrics.Stage stage, long start) {
+		metrics.recordLatency(stage, System.nanoTime() - start);
+	}
+
+	public static void increment(PipelineMetrics.Counter counter) {
+		metrics.increment(counter, 1);
+	}
+
+	public static void increment(PipelineMetrics.Counter counter, long delta) {
+		metrics.increment(counter, delta);
+	}
+
+}
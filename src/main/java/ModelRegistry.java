@@ -0,0 +1,166 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Holds the current version of the CNN model and swaps it atomically for a new
+ * one, e.g. a retrained model, without a restart.
+ *
+ * Each request runs against the model current when it started. A replaced
+ * model is closed once its last request in flight is done, so no request is
+ * dropped by a swap.
+ */
+public class ModelRegistry implements AutoCloseable {
+
+	public static final String DEFAULT_GRAPH_RESOURCE = "CNN_Model/output_graph.pb";
+	public static final String DEFAULT_LABELS_RESOURCE = "CNN_Model/labels.txt";
+
+	private final AtomicReference<CnnModel> current;
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	/**
+	 *
+	 * @param model
+	 *            first version of the model; the registry takes ownership of it
+	 */
+	public ModelRegistry(CnnModel model) {
+		this.current = new AtomicReference<>(model);
+	}
+
+	/**
+	 * Registry shared by every classifier created without an explicit one. The
+	 * model bundled in the classpath is loaded on first use, with one session per
+	 * available processor, each running a single thread.
+	 *
+	 * @return
+	 */
+	public static ModelRegistry shared() {
+		return SharedRegistry.INSTANCE;
+	}
+
+	private static class SharedRegistry {
+		private static final ModelRegistry INSTANCE;
+
+		static {
+			try {
+				SessionConfig sessionConfig = SessionConfig.forPoolSize(Runtime.getRuntime().availableProcessors());
+				INSTANCE = new ModelRegistry(CnnModel.fromClasspath("bundled", DEFAULT_GRAPH_RESOURCE,
+						DEFAULT_LABELS_RESOURCE, sessionConfig));
+			} catch (IOException e) {
+				throw new UncheckedIOException("Unable to load the bundled CNN model", e);
+			}
+		}
+	}
+
+	/**
+	 * Run the given work with the current model, which is not closed before the
+	 * work is done even if swapped in the meantime.
+	 *
+	 * @param work
+	 * @return result of work
+	 */
+	public <R> R run(Function<CnnModel, R> work) {
+		CnnModel model = acquire();
+		try {
+			return work.apply(model);
+		} finally {
+			model.release();
+		}
+	}
+
+	/**
+	 * Current model, retained until given back with {@link #release(CnnModel)}
+	 * even if swapped in the meantime. For work that outlives a call, e.g. a
+	 * benchmark; {@link #run(Function)} is simpler otherwise.
+	 *
+	 * @return retained model
+	 */
+	public CnnModel acquire() {
+		if (closed.get()) {
+			throw new IllegalStateException("Model registry is closed");
+		}
+		CnnModel model = current.get();
+		while (!model.retain()) {
+			// Retired by a swap between get and retain, or the registry is closed
+			CnnModel next = current.get();
+			if (next == model) {
+				throw new IllegalStateException("Model registry is closed");
+			}
+			model = next;
+		}
+		return model;
+	}
+
+	/**
+	 * Give back a model returned by {@link #acquire()}.
+	 *
+	 * @param model
+	 */
+	public void release(CnnModel model) {
+		model.release();
+	}
+
+	/**
+	 * Current model, not retained: it may be retired at any time by a swap, after
+	 * which its sessions can not be used. Use {@link #run(Function)} or
+	 * {@link #acquire()} to run requests.
+	 *
+	 * @return
+	 */
+	public CnnModel current() {
+		return current.get();
+	}
+
+	/**
+	 * Replace the current model. The sessions of the new model are opened before
+	 * it becomes current, so requests do not pay its cold start, and the old
+	 * model is closed when its requests in flight are done. The new model is
+	 * closed if it can not become current, e.g. its warm-up failed or the
+	 * registry was closed in the meantime.
+	 *
+	 * @param model
+	 *            new version of the model; the registry takes ownership of it
+	 * @return version of the replaced model
+	 */
+	public String swap(CnnModel model) {
+		CnnModel replaced = null;
+		try {
+			if (closed.get()) {
+				throw new IllegalStateException("Model registry is closed");
+			}
+			model.sessionPool().warmUp();
+
+			// Not closed between the check and the swap, or close would miss the new model
+			synchronized (this) {
+				if (closed.get()) {
+					throw new IllegalStateException("Model registry is closed");
+				}
+				replaced = current.getAndSet(model);
+			}
+		} finally {
+			if (replaced == null) {
+				model.release();
+			}
+		}
+		replaced.release();
+		return replaced.version();
+	}
+
+	/**
+	 * Close the current model once its requests in flight are done.
+	 */
+	@Override
+	public void close() {
+		CnnModel model;
+		synchronized (this) {
+			if (!closed.compareAndSet(false, true)) {
+				return;
+			}
+			model = current.get();
+		}
+		model.release();
+	}
+
+}
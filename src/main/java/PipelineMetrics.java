@@ -0,0 +1,59 @@
+/**
+ * Receives latency and counter measurements of the decaptcha pipeline.
+ * Implementations must be thread-safe and cheap to call from the request path.
+ * The instance used by the pipeline is set with {@link Metrics#set(PipelineMetrics)}.
+ */
+public interface PipelineMetrics {
+
+	/**
+	 * Timed stages of the pipeline.
+	 */
+	public enum Stage {
+		/** Captcha image bytes decoded to a Mat (byteArray2Mat) */
+		DECODE,
+		/** Thresholding of the captcha image */
+		THRESHOLD,
+		/** Search of the characters bounding rectangles */
+		SEGMENT,
+		/** Conversion of each cropped character to JPEG bytes or model input pixels */
+		ENCODE,
+		/** Normalization of a character JPEG by the model graph */
+		NORMALIZE,
+		/** Forward pass of the CNN model */
+		INFERENCE,
+		/** Remote solving, from sending the captcha to receiving its answer */
+		REMOTE_ROUND_TRIP
+	}
+
+	/**
+	 * Counted events of the pipeline.
+	 */
+	public enum Counter {
+		/** Captchas processed by the local pipeline */
+		CAPTCHAS,
+		/** Characters segmented from the captchas */
+		CHARACTERS,
+		/** Characters whose max probability was below the classifier threshold */
+		REJECTED_CHARACTERS,
+		/** Captcha ids polled on the remote solver */
+		REMOTE_POLLS
+	}
+
+	/**
+	 * Metrics discarding every measurement.
+	 */
+	public static final PipelineMetrics NONE = new PipelineMetrics() {
+		@Override
+		public void recordLatency(Stage stage, long nanos) {
+		}
+
+		@Override
+		public void increment(Counter counter, long delta) {
+		}
+	};
+
+	public void recordLatency(Stage stage, long nanos);
+
+	public void increment(Counter counter, long delta);
+
+}
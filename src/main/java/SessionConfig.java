@@ -0,0 +1,113 @@
+import org.tensorflow.framework.ConfigProto;
+
+/**
+ * Sizing of the sessions running a model: number of sessions of the pool and
+ * Tensorflow threads of each one.
+ *
+ * By default Tensorflow sizes its thread pools to all cores, while a pool of
+ * sessions already runs several inferences in parallel: many small 20x20
+ * inferences are faster with few threads per inference. Unless per-session
+ * threads are used, Tensorflow creates its thread pools once per process, sized
+ * by the first session opened.
+ *
+ * Threads can not be pinned to CPUs from Java: run the JVM under taskset or
+ * numactl to restrict it to a set of cores, and size the threads accordingly.
+ */
+public class SessionConfig {
+
+	private final int poolSize;
+	private final int intraOpThreads;
+	private final int interOpThreads;
+	private final boolean perSessionThreads;
+
+	/**
+	 *
+	 * @param poolSize
+	 *            maximum number of sessions running at the same time
+	 * @param intraOpThreads
+	 *            threads used to parallelize a single op, such as a
+	 *            convolution; 0 lets Tensorflow choose
+	 * @param interOpThreads
+	 *            threads used to run independent ops in parallel; 0 lets
+	 *            Tensorflow choose
+	 * @param perSessionThreads
+	 *            give each session its own thread pools instead of the ones
+	 *            shared by the process
+	 */
+	public SessionConfig(int poolSize, int intraOpThreads, int interOpThreads, boolean perSessionThreads) {
+		if (poolSize < 1) {
+			throw new IllegalArgumentException("Pool size must be positive: " + poolSize);
+		}
+		if (intraOpThreads < 0 || interOpThreads < 0) {
+			throw new IllegalArgumentException(
+					"Thread counts must not be negative: " + intraOpThreads + ", " + interOpThreads);
+		}
+
+		this.poolSize = poolSize;
+		this.intraOpThreads = intraOpThreads;
+		this.interOpThreads = interOpThreads;
+		this.perSessionThreads = perSessionThreads;
+	}
+
+	/**
+	 * Sessions sharing the available processors: each session gets its own
+	 * thread pools, of processors / poolSize threads for its ops and a single
+	 * thread to schedule them, so the pool as a whole uses about one thread per
+	 * processor. Shared process-wide pools would instead be sized by the first
+	 * session alone, every session then queuing on its few threads.
+	 *
+	 * @param poolSize
+	 * @return
+	 */
+	public static SessionConfig forPoolSize(int poolSize) {
+		int processors = Runtime.getRuntime().availableProcessors();
+		return new SessionConfig(poolSize, Math.max(1, processors / poolSize), 1, true);
+	}
+
+	/**
+	 * Sessions with the thread pools chosen by Tensorflow.
+	 *
+	 * @param poolSize
+	 * @return
+	 */
+	public static SessionConfig tensorflowDefaults(int poolSize) {
+		return new SessionConfig(poolSize, 0, 0, false);
+	}
+
+	public int poolSize() {
+		return poolSize;
+	}
+
+	public int intraOpThreads() {
+		return intraOpThreads;
+	}
+
+	public int interOpThreads() {
+		return interOpThreads;
+	}
+
+	public boolean perSessionThreads() {
+		return perSessionThreads;
+	}
+
+	/**
+	 * Serialized ConfigProto given to each session.
+	 *
+	 * @return
+	 */
+	public byte[] toConfigProto() {
+		return ConfigProto.newBuilder()
+				.setIntraOpParallelismThreads(intraOpThreads)
+				.setInterOpParallelismThreads(interOpThreads)
+				.setUsePerSessionThreads(perSessionThreads)
+				.build()
+				.toByteArray();
+	}
+
+	@Override
+	public String toString() {
+		return "SessionConfig pool=" + poolSize + " intraOp=" + intraOpThreads + " interOp=" + interOpThreads
+				+ " perSession=" + perSessionThreads;
+	}
+
+}
@@ -0,0 +1,207 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.tensorflow.Graph;
+import org.tensorflow.Session;
+
+/**
+ * Bounded pool of Tensorflow sessions sharing a single imported graph.
+ *
+ * The graph is imported or built only once, before the pool is created. Sessions
+ * are opened lazily up to the pool size (or all at once by {@link #warmUp()})
+ * and handed to one thread at a time, so the pool can be shared by every
+ * classifier of the application.
+ */
+public class SessionPool implements AutoCloseable {
+
+	// Interval at which threads waiting for a session check whether the pool was closed
+	private static final long CLOSE_CHECK_MILLIS = 100;
+
+	private final Graph graph;
+	private final byte[] config;
+	private final BlockingQueue<Session> idleSessions;
+	private final AtomicInteger openSessions = new AtomicInteger();
+	private final int size;
+	private volatile boolean closed;
+
+	/**
+	 *
+	 * @param graphDef Protobuffer model generated in Python
+	 * @param size Maximum number of sessions kept open at the same time
+	 */
+	public SessionPool(byte[] graphDef, int size) {
+		this(importGraph(graphDef), size);
+	}
+
+	/**
+	 * Creates a pool over an already built graph. The pool takes ownership of the
+	 * graph and closes it on {@link #close()}.
+	 *
+	 * @param graph Graph shared by all sessions
+	 * @param size Maximum number of sessions kept open at the same time
+	 */
+	public SessionPool(Graph graph, int size) {
+		this(graph, size, null);
+	}
+
+	/**
+	 * Creates a pool over an already built graph, opening its sessions with the
+	 * given options. The pool takes ownership of the graph and closes it on
+	 * {@link #close()}.
+	 *
+	 * @param graph Graph shared by all sessions
+	 * @param size Maximum number of sessions kept open at the same time
+	 * @param config Serialized ConfigProto of the sessions, see {@link SessionConfig}, or null for the defaults
+	 */
+	public SessionPool(Graph graph, int size, byte[] config) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Pool size must be positive: " + size);
+		}
+
+		this.size = size;
+		this.idleSessions = new ArrayBlockingQueue<>(size);
+		this.graph = graph;
+		this.config = config;
+	}
+
+	private static Graph importGraph(byte[] graphDef) {
+		Graph graph = new Graph();
+		graph.importGraphDef(graphDef);
+		return graph;
+	}
+
+	/**
+	 * Graph shared by all sessions of the pool.
+	 *
+	 * @return
+	 */
+	public Graph graph() {
+		return graph;
+	}
+
+	/**
+	 * Maximum number of sessions of the pool.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Open every session of the pool ahead of the first request.
+	 */
+	public void warmUp() {
+		while (openSessions.get() < size) {
+			Session session = tryOpen();
+			if (session == null) {
+				break;
+			}
+			giveBack(session);
+		}
+	}
+
+	/**
+	 * Borrow a session, run the given work with it and give it back to the pool.
+	 * Blocks while all sessions are in use by other threads.
+	 *
+	 * @param work
+	 * @return result of work
+	 */
+	public <R> R run(Function<Session, R> work) {
+		Session session = borrow();
+		try {
+			return work.apply(session);
+		} finally {
+			giveBack(session);
+		}
+	}
+
+	private Session borrow() {
+		ensureOpen();
+
+		Session session = idleSessions.poll();
+		if (session == null) {
+			session = tryOpen();
+		}
+
+		while (session == null) {
+			ensureOpen();
+			try {
+				session = idleSessions.poll(CLOSE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for a Tensorflow session", e);
+			}
+		}
+
+		// Closed while waiting or opening
+		if (closed) {
+			giveBack(session);
+			ensureOpen();
+		}
+
+		return session;
+	}
+
+	private void giveBack(Session session) {
+		idleSessions.offer(session);
+
+		// close() may have drained the idle sessions before this one was offered
+		if (closed) {
+			closeIdleSessions();
+		}
+	}
+
+	private void closeIdleSessions() {
+		Session session;
+		while ((session = idleSessions.poll()) != null) {
+			session.close();
+		}
+	}
+
+	private Session tryOpen() {
+		int open;
+		do {
+			open = openSessions.get();
+			if (open >= size) {
+				return null;
+			}
+		} while (!openSessions.compareAndSet(open, open + 1));
+
+		try {
+			return config == null ? new Session(graph) : new Session(graph, config);
+		} catch (RuntimeException | Error e) {
+			// Give the slot back, so a failed open does not shrink the pool
+			openSessions.decrementAndGet();
+			throw e;
+		}
+	}
+
+	private void ensureOpen() {
+		if (closed) {
+			throw new IllegalStateException("Session pool is closed");
+		}
+	}
+
+	/**
+	 * Close idle sessions and the graph. Sessions still in use are closed when
+	 * given back, and threads waiting for a session fail with an
+	 * {@link IllegalStateException}. Closing the graph waits for the sessions
+	 * still in use.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		closeIdleSessions();
+		graph.close();
+	}
+
+}
@@ -0,0 +1,175 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the regular files of an uncompressed tar archive, one at a time.
+ *
+ * The archive is memory-mapped in windows, so archives of any size can be
+ * read without loading them on the heap: only the file being returned is
+ * copied to a byte[].
+ *
+ * Names longer than the 100 bytes of the header are read from GNU long name
+ * entries (././@LongLink) and from the path of pax extended headers.
+ */
+public class TarReader implements Iterator<Map.Entry<String, byte[]>>, Closeable {
+
+	private static final int BLOCK_SIZE = 512;
+	private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+	private final FileChannel channel;
+	private final long archiveSize;
+	private MappedByteBuffer window;
+	private long windowStart;
+	private long position;
+	private Map.Entry<String, byte[]> next;
+
+	public TarReader(Path archive) throws IOException {
+		this.channel = FileChannel.open(archive, StandardOpenOption.READ);
+		this.archiveSize = channel.size();
+		this.next = readNext();
+	}
+
+	@Override
+	public boolean hasNext() {
+		return next != null;
+	}
+
+	@Override
+	public Map.Entry<String, byte[]> next() {
+		if (next == null) {
+			throw new NoSuchElementException();
+		}
+
+		Map.Entry<String, byte[]> current = next;
+		try {
+			next = readNext();
+		} catch (IOException e) {
+			throw new IllegalStateException("Invalid tar archive", e);
+		}
+		return current;
+	}
+
+	private Map.Entry<String, byte[]> readNext() throws IOException {
+		// Name of the next entry, given by the entry before it
+		String longName = null;
+
+		while (position + BLOCK_SIZE <= archiveSize) {
+			byte[] header = read(position, BLOCK_SIZE);
+
+			// Archive ends with zero blocks
+			if (header[0] == 0) {
+				return null;
+			}
+
+			String name = string(header, 0, 100);
+			// GNU headers keep other fields where POSIX ones keep the prefix
+			String prefix = string(header, 257, 6).equals("ustar") ? string(header, 345, 155) : "";
+			String octalSize = string(header, 124, 12).trim();
+			long size = octalSize.isEmpty() ? 0 : Long.parseLong(octalSize, 8);
+			byte type = header[156];
+
+			long dataStart = position + BLOCK_SIZE;
+			position = dataStart + (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+
+			if (type == 'L') {
+				byte[] data = read(dataStart, (int) size);
+				longName = string(data, 0, data.length);
+				continue;
+			}
+			if (type == 'x') {
+				String path = paxPath(read(dataStart, (int) size));
+				if (path != null) {
+					longName = path;
+				}
+				continue;
+			}
+			// Long link names and global pax headers say nothing of the next name
+			if (type == 'K' || type == 'g') {
+				continue;
+			}
+
+			// Regular files only
+			if (type == '0' || type == 0) {
+				String path = longName != null ? longName : prefix.isEmpty() ? name : prefix + "/" + name;
+				return new AbstractMap.SimpleImmutableEntry<>(path, read(dataStart, (int) size));
+			}
+			longName = null;
+		}
+		return null;
+	}
+
+	/**
+	 * Path of a pax extended header, made of "length key=value\n" records.
+	 *
+	 * @param records
+	 * @return path or null if the header gives none
+	 * @throws IOException
+	 */
+	private static String paxPath(byte[] records) throws IOException {
+		String path = null;
+		int offset = 0;
+		while (offset < records.length && records[offset] != 0) {
+			int space = offset;
+			while (space < records.length && records[space] != ' ') {
+				space++;
+			}
+			int length;
+			try {
+				length = Integer.parseInt(new String(records, offset, space - offset, StandardCharsets.US_ASCII));
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid pax header", e);
+			}
+			if (length <= space - offset || offset + length > records.length) {
+				throw new IOException("Invalid pax header");
+			}
+
+			// Without the trailing newline
+			String record = new String(records, space + 1, offset + length - space - 2, StandardCharsets.UTF_8);
+			if (record.startsWith("path=")) {
+				path = record.substring("path=".length());
+			}
+			offset += length;
+		}
+		return path;
+	}
+
+	private byte[] read(long start, int length) throws IOException {
+		if (start + length > archiveSize) {
+			throw new IOException("Truncated tar archive");
+		}
+
+		if (window == null || start < windowStart || start + length > windowStart + window.capacity()) {
+			windowStart = start;
+			long size = Math.min(Math.max(WINDOW_SIZE, length), archiveSize - start);
+			window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, size);
+		}
+
+		byte[] bytes = new byte[length];
+		window.position((int) (start - windowStart));
+		window.get(bytes);
+		return bytes;
+	}
+
+	private static String string(byte[] header, int offset, int length) {
+		int end = offset;
+		while (end < offset + length && header[end] != 0) {
+			end++;
+		}
+		return new String(header, offset, end - offset, StandardCharsets.US_ASCII);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
@@ -1,36 +1,172 @@
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLEncoder;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
-import java.util.Scanner;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
 
 /**
  * 2Captcha is a human-powered image and CAPTCHA recognition service. 2Captcha's
  * main purpose is solving your CAPTCHAs in a quick and accurate way by human
  * employees, but the service is not limited only to CAPTCHA solving. You can
  * convert to text any image that a human can recognize.
- * 
+ *
+ * Captchas are sent and polled without blocking the caller: images are
+ * uploaded by a pool of threads, one per HTTP connection, while a single
+ * scheduler polls all outstanding captchas together, in one request, so a slow
+ * upload never delays polling. HTTP connections are kept alive in a pool.
+ *
  * @author gmarinelli
  *
  */
-public class TwoCaptchaDecaptcher implements Decaptcher {
+public class TwoCaptchaDecaptcher implements AsyncDecaptcher, AutoCloseable {
+
+	public static final String DEFAULT_BASE_URL = "http://2captcha.com";
+
+	// Interval between checks for captchas due to be polled
+	private static final long POLL_TICK_MILLIS = 100;
+
+	private static final int MAX_CONNECTIONS = 32;
+
+	// Largest number of ids res.php answers in one request
+	private static final int MAX_IDS_PER_POLL = 100;
 
 	private final String api_key;
+	private final String baseUrl;
+	private final CloseableHttpClient httpClient;
+	private final ScheduledExecutorService scheduler;
+	private final ThreadPoolExecutor uploader;
+	private final Map<String, PendingCaptcha> pendingCaptchas = new ConcurrentHashMap<>();
+
+	private volatile long initialDelayMillis = 5000;
+	private volatile long pollIntervalMillis = 1000;
+	private volatile double backoff = 1.5;
+	private volatile long maxPollIntervalMillis = 5000;
+	private volatile long timeoutMillis = 120000;
 
 	/**
 	 * Creates a new 2captcha decaptcher with your API key; Get your API key from
 	 * your account settings page. Each user is given a unique authentication token,
 	 * we call it API key. It's a 32-characters string that looks like:
 	 * 1abc234de56fab7c89012d34e56fa7b8
-	 * 
+	 *
 	 * @param api_key
 	 */
 	public TwoCaptchaDecaptcher(String api_key) {
+		this(api_key, DEFAULT_BASE_URL);
+	}
+
+	/**
+	 *
+	 * @param api_key
+	 * @param baseUrl
+	 *            URL of the 2captcha API, without the in.php or res.php path.
+	 *            Useful to test against a local server.
+	 */
+	public TwoCaptchaDecaptcher(String api_key, String baseUrl) {
 		this.api_key = api_key;
+		this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(MAX_CONNECTIONS);
+		connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(10000)
+				.setSocketTimeout(30000)
+				.build();
+		this.httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.build();
+
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "2captcha-poller");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		// Upload threads are started on demand and stopped when idle
+		this.uploader = new ThreadPoolExecutor(MAX_CONNECTIONS, MAX_CONNECTIONS, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), runnable -> {
+					Thread thread = new Thread(runnable, "2captcha-uploader");
+					thread.setDaemon(true);
+					return thread;
+				});
+		this.uploader.allowCoreThreadTimeOut(true);
+
+		this.scheduler.scheduleWithFixedDelay(this::pollDueCaptchas, POLL_TICK_MILLIS, POLL_TICK_MILLIS,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Configure how results are polled. The first poll happens after the
+	 * initial delay (20 seconds are advised for ReCaptcha, 5 seconds for other
+	 * types of captchas). Then the interval between polls is multiplied by the
+	 * backoff at each not ready answer, up to the max interval.
+	 *
+	 * @param initialDelay
+	 * @param pollInterval
+	 * @param backoff
+	 * @param maxPollInterval
+	 * @param unit
+	 */
+	public void setPolling(long initialDelay, long pollInterval, double backoff, long maxPollInterval, TimeUnit unit) {
+		if (backoff < 1) {
+			throw new IllegalArgumentException("Backoff must not be lower than 1: " + backoff);
+		}
+
+		this.initialDelayMillis = unit.toMillis(initialDelay);
+		this.pollIntervalMillis = unit.toMillis(pollInterval);
+		this.backoff = backoff;
+		this.maxPollIntervalMillis = unit.toMillis(maxPollInterval);
+	}
+
+	/**
+	 * Maximum time to wait for a captcha to be solved after it was sent.
+	 *
+	 * @param timeout
+	 * @param unit
+	 */
+	public void setTimeout(long timeout, TimeUnit unit) {
+		this.timeoutMillis = unit.toMillis(timeout);
+	}
+
+	/**
+	 * Number of captchas sent and waiting for an answer.
+	 *
+	 * @return
+	 */
+	public int pendingCount() {
+		return pendingCaptchas.size();
 	}
 
 	/**
@@ -39,22 +175,28 @@ public class TwoCaptchaDecaptcher implements Decaptcher {
 	 */
 	public String decapcha(byte[] captchaImage) {
 		try {
-			String id = sendImage(captchaImage);
-			System.out.println("Got id from 2captcha: " + id);
-
-			String text = "CAPCHA_NOT_READY";
-			while (text.equalsIgnoreCase("CAPCHA_NOT_READY")) {
-				// Make a timeout: 20 seconds for ReCaptcha, 5 seconds for other types of
-				// captchas.
-				Thread.sleep(1000);
-				text = getText(id);
-				System.out.println("Got text from 2captcha: " + text);
+			return decapchaAsync(captchaImage).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
 			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
 
-			return text;
-		} catch (Exception e) {
-			throw new RuntimeException(e);
+	@Override
+	public CompletableFuture<String> decapchaAsync(byte[] captchaImage) {
+		CompletableFuture<String> result = new CompletableFuture<>();
+		long start = System.nanoTime();
+		result.whenComplete((answer, error) -> Metrics.recordSince(PipelineMetrics.Stage.REMOTE_ROUND_TRIP, start));
+
+		try {
+			uploader.execute(new Upload(captchaImage, result));
+		} catch (RejectedExecutionException e) {
+			result.completeExceptionally(new IllegalStateException("2captcha decaptcher is closed"));
 		}
+
+		return result;
 	}
 
 	/**
@@ -63,97 +205,209 @@ public class TwoCaptchaDecaptcher implements Decaptcher {
 	 * captcha ID or an error code if something went wrong. If everything is fine
 	 * server will return the ID of your captcha as plain text, like: OK|2122988149
 	 * or as JSON {"status":1,"request":"2122988149"} if json parameter was used.
-	 * 
+	 *
 	 * @param captchaImage
 	 * @return
 	 * @throws IOException
 	 */
 	private String sendImage(byte[] captchaImage) throws IOException {
 
-		String captchaBase64 = Base64.getEncoder().encodeToString(captchaImage);
-		StringBuilder postData = new StringBuilder(2048);
-		postData.append("method=base64");
-		postData.append("&key=");
-		postData.append(URLEncoder.encode(this.api_key, "UTF-8"));
-		postData.append("&body=");
-		postData.append(URLEncoder.encode(captchaBase64, "UTF-8"));
-		byte[] postDataBytes = postData.toString().getBytes("UTF-8");
-
-		URL target = new URL("http://2captcha.com/in.php");
-		HttpURLConnection connection = (HttpURLConnection) target.openConnection();
-
-		connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
-		connection.setRequestMethod("POST");
-		connection.setDoOutput(true);
-		OutputStream os = connection.getOutputStream();
+		List<NameValuePair> postData = new ArrayList<>(3);
+		postData.add(new BasicNameValuePair("method", "base64"));
+		postData.add(new BasicNameValuePair("key", this.api_key));
+		postData.add(new BasicNameValuePair("body", Base64.getEncoder().encodeToString(captchaImage)));
+
+		HttpPost post = new HttpPost(baseUrl + "/in.php");
+		post.setEntity(new UrlEncodedFormEntity(postData, StandardCharsets.UTF_8));
+
+		String result = execute(post);
+		if (result.startsWith("OK|"))
+			return result.substring(3);
+		else
+			throw new RuntimeException(result);
+	}
+
+	/**
+	 * Submit a HTTP GET request to our API URL: http://2captcha.com/res.php to get
+	 * the result of several captchas at once. Answers are returned in the same
+	 * order as the ids, separated by |. If a captcha is not solved yet its answer
+	 * is CAPCHA_NOT_READY. If something went wrong with a captcha its answer is an
+	 * error code. If something went wrong with the whole request, such as a wrong
+	 * API key, the single error code is the answer of every captcha.
+	 *
+	 * @param reqIds
+	 * @return answer of each id
+	 * @throws IOException
+	 */
+	private List<String> getTexts(List<String> reqIds) throws IOException {
+
+		URI uri;
 		try {
-			os.write(postDataBytes);
-		} finally {
-			os.close();
+			uri = new URIBuilder(baseUrl + "/res.php")
+					.addParameter("key", this.api_key)
+					.addParameter("action", "get")
+					.addParameter("ids", String.join(",", reqIds))
+					.build();
+		} catch (URISyntaxException e) {
+			throw new IOException(e);
 		}
-		InputStream is = connection.getInputStream();
-		try {
-			Scanner s = new Scanner(is);
-			s.useDelimiter("\\A");
-			try {
-				String result = s.hasNext() ? s.next() : "";
-				System.out.println(result);
-				if (result.startsWith("OK|"))
-					return result.substring(3);
-				else
-					throw new RuntimeException(result);
-			} finally {
-				s.close();
+
+		String result = execute(new HttpGet(uri));
+		if (result.startsWith("ERROR_") && !result.contains("|")) {
+			return Collections.nCopies(reqIds.size(), result);
+		}
+
+		List<String> answers = Arrays.asList(result.split("\\|", -1));
+		if (answers.size() != reqIds.size()) {
+			throw new IOException("Expected " + reqIds.size() + " answers from 2captcha, got: " + result);
+		}
+		return answers;
+	}
+
+	private String execute(HttpUriRequest request) throws IOException {
+		try (CloseableHttpResponse response = httpClient.execute(request)) {
+			// Consuming the entity releases the connection back to the pool
+			return EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8).trim();
+		}
+	}
+
+	/**
+	 * Poll all captchas due, in as few requests as res.php allows, and complete
+	 * the solved ones.
+	 */
+	private void pollDueCaptchas() {
+		long now = System.currentTimeMillis();
+		List<String> dueIds = new ArrayList<>();
+
+		Iterator<Map.Entry<String, PendingCaptcha>> pending = pendingCaptchas.entrySet().iterator();
+		while (pending.hasNext()) {
+			Map.Entry<String, PendingCaptcha> entry = pending.next();
+			PendingCaptcha captcha = entry.getValue();
+
+			if (now >= captcha.deadline) {
+				pending.remove();
+				captcha.result.completeExceptionally(
+						new RuntimeException("Timeout waiting for 2captcha to solve captcha " + entry.getKey()));
+			} else if (now >= captcha.nextPoll) {
+				dueIds.add(entry.getKey());
 			}
-		} finally {
-			is.close();
+		}
+
+		if (dueIds.isEmpty()) {
+			return;
+		}
+
+		Metrics.increment(PipelineMetrics.Counter.REMOTE_POLLS, dueIds.size());
+
+		for (int start = 0; start < dueIds.size(); start += MAX_IDS_PER_POLL) {
+			poll(dueIds.subList(start, Math.min(start + MAX_IDS_PER_POLL, dueIds.size())), now);
 		}
 	}
 
 	/**
-	 * Submit a HTTP GET request to our API URL: http://2captcha.com/res.php to get
-	 * the result. If captha is already solved server will return the answer in
-	 * format corresponding to the type of your captcha. By default answers are
-	 * returned as plain text like: OK|Your answer. But answer can also be returned
-	 * as JSON {"status":1,"request":"TEXT"} if json parameter is used. If captcha
-	 * is not solved yet server will return CAPCHA_NOT_READY result. Repeat your
-	 * request in 5 seconds. If something went wrong server will return an error
-	 * code.
-	 * 
-	 * @param reqId
-	 * @return
-	 * @throws IOException
+	 * Poll captchas in a single request and complete the solved ones.
+	 *
+	 * @param dueIds
+	 *            at most {@link #MAX_IDS_PER_POLL} ids
+	 * @param now
 	 */
-	private String getText(String reqId) throws IOException {
-
-		String endpoint = "http://2captcha.com/res.php?key=";
-		endpoint += URLEncoder.encode(this.api_key, "UTF-8");
-		endpoint += "&action=get";
-		endpoint += "&id=";
-		endpoint += URLEncoder.encode(reqId, "UTF-8");
-
-		URL url = new URL(endpoint);
-		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-		connection.setRequestMethod("GET");
-		InputStream is = connection.getInputStream();
+	private void poll(List<String> dueIds, long now) {
+		List<String> answers;
 		try {
-			Scanner s = new Scanner(is);
-			s.useDelimiter("\\A");
+			answers = getTexts(dueIds);
+		} catch (Exception e) {
+			// Keep the captchas pending, they are polled again after their interval
+			for (String id : dueIds) {
+				PendingCaptcha captcha = pendingCaptchas.get(id);
+				if (captcha != null) {
+					captcha.notReady(now);
+				}
+			}
+			return;
+		}
+
+		for (int i = 0; i < dueIds.size(); i++) {
+			String id = dueIds.get(i);
+			String answer = answers.get(i);
+			PendingCaptcha captcha = pendingCaptchas.get(id);
+			if (captcha == null) {
+				continue;
+			}
+
+			if (answer.equalsIgnoreCase("CAPCHA_NOT_READY")) {
+				captcha.notReady(now);
+			} else {
+				pendingCaptchas.remove(id);
+				if (answer.startsWith("ERROR_")) {
+					captcha.result.completeExceptionally(new RuntimeException(answer));
+				} else {
+					captcha.result.complete(answer.startsWith("OK|") ? answer.substring(3) : answer);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop polling, fail the captchas still waiting for an answer and close the
+	 * HTTP connections.
+	 */
+	@Override
+	public void close() throws IOException {
+		scheduler.shutdownNow();
+		for (Runnable upload : uploader.shutdownNow()) {
+			((Upload) upload).result.completeExceptionally(new IllegalStateException("2captcha decaptcher is closed"));
+		}
+		for (PendingCaptcha captcha : pendingCaptchas.values()) {
+			captcha.result.completeExceptionally(new IllegalStateException("2captcha decaptcher is closed"));
+		}
+		pendingCaptchas.clear();
+		httpClient.close();
+	}
+
+	/**
+	 * Captcha waiting for its image to be sent.
+	 */
+	private class Upload implements Runnable {
+		private final byte[] captchaImage;
+		private final CompletableFuture<String> result;
+
+		private Upload(byte[] captchaImage, CompletableFuture<String> result) {
+			this.captchaImage = captchaImage;
+			this.result = result;
+		}
+
+		@Override
+		public void run() {
 			try {
-				String result = s.hasNext() ? s.next() : "";
-				System.out.println(result);
-				if (result.startsWith("OK|"))
-					return result.substring(3);
-				else if (result.equalsIgnoreCase("CAPCHA_NOT_READY"))
-					return result;
-				else
-					throw new RuntimeException(result);
-			} finally {
-				s.close();
+				String id = sendImage(captchaImage);
+				long now = System.currentTimeMillis();
+				pendingCaptchas.put(id, new PendingCaptcha(result, now + initialDelayMillis, now + timeoutMillis));
+
+				// Closed while sending: no poll will ever answer it
+				if (scheduler.isShutdown() && pendingCaptchas.remove(id) != null) {
+					result.completeExceptionally(new IllegalStateException("2captcha decaptcher is closed"));
+				}
+			} catch (Exception e) {
+				result.completeExceptionally(e);
 			}
-		} finally {
-			is.close();
+		}
+	}
+
+	private class PendingCaptcha {
+		private final CompletableFuture<String> result;
+		private final long deadline;
+		private volatile long nextPoll;
+		private volatile long interval = pollIntervalMillis;
+
+		private PendingCaptcha(CompletableFuture<String> result, long firstPoll, long deadline) {
+			this.result = result;
+			this.nextPoll = firstPoll;
+			this.deadline = deadline;
 		}
 
+		private void notReady(long now) {
+			nextPoll = now + interval;
+			interval = Math.min(maxPollIntervalMillis, (long) (interval * backoff));
+		}
 	}
 }
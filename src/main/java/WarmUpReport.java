@@ -0,0 +1,127 @@
+/**
+ * Timings of a warm-up of the decaptcha pipeline: the first captcha, which
+ * pays for the native libraries, graph import and session creation, then the
+ * latency percentiles of each iteration over the samples, until the p99
+ * latency has converged.
+ */
+public class WarmUpReport {
+
+	private final int captchasPerIteration;
+	private final long firstCaptchaNanos;
+	private final long[] p50Nanos;
+	private final long[] p99Nanos;
+	private final double tolerance;
+	private final long totalNanos;
+
+	/**
+	 *
+	 * @param captchasPerIteration
+	 * @param firstCaptchaNanos
+	 * @param p50Nanos
+	 *            median latency of each iteration
+	 * @param p99Nanos
+	 *            99th percentile latency of each iteration
+	 * @param tolerance
+	 *            largest relative change of the p99 latency between the last
+	 *            two iterations for the warm-up to have converged
+	 * @param totalNanos
+	 */
+	public WarmUpReport(int captchasPerIteration, long firstCaptchaNanos, long[] p50Nanos, long[] p99Nanos,
+			double tolerance, long totalNanos) {
+		this.captchasPerIteration = captchasPerIteration;
+		this.firstCaptchaNanos = firstCaptchaNanos;
+		this.p50Nanos = p50Nanos.clone();
+		this.p99Nanos = p99Nanos.clone();
+		this.tolerance = tolerance;
+		this.totalNanos = totalNanos;
+	}
+
+	public int iterations() {
+		return p99Nanos.length;
+	}
+
+	public int captchasPerIteration() {
+		return captchasPerIteration;
+	}
+
+	/**
+	 * Latency of the very first captcha, including the pipeline initialization.
+	 *
+	 * @return
+	 */
+	public long firstCaptchaNanos() {
+		return firstCaptchaNanos;
+	}
+
+	/**
+	 * Median latency of a captcha during the given iteration.
+	 *
+	 * @param iteration
+	 * @return
+	 */
+	public long p50Nanos(int iteration) {
+		return p50Nanos[iteration];
+	}
+
+	/**
+	 * 99th percentile latency of a captcha during the given iteration.
+	 *
+	 * @param iteration
+	 * @return
+	 */
+	public long p99Nanos(int iteration) {
+		return p99Nanos[iteration];
+	}
+
+	/**
+	 * Duration of the whole warm-up.
+	 *
+	 * @return
+	 */
+	public long totalNanos() {
+		return totalNanos;
+	}
+
+	/**
+	 * Whether the p99 latency of the last iteration is within the given
+	 * tolerance of the previous one, e.g. 0.1 for 10%.
+	 *
+	 * @param tolerance
+	 * @return
+	 */
+	public boolean isSettled(double tolerance) {
+		int last = p99Nanos.length - 1;
+		if (last < 1) {
+			return false;
+		}
+		return Math.abs(p99Nanos[last] - p99Nanos[last - 1]) <= tolerance * p99Nanos[last - 1];
+	}
+
+	/**
+	 * Whether the p99 latency of the last iteration is within the tolerance of
+	 * the warm-up of the previous one, so the decaptcher is ready.
+	 *
+	 * @return
+	 */
+	public boolean isConverged() {
+		return isSettled(tolerance);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		text.append("Warm-up of ").append(iterations()).append(" iterations over ").append(captchasPerIteration)
+				.append(" captchas in ").append(totalNanos / 1000000).append(" ms, first captcha ")
+				.append(firstCaptchaNanos / 1000000).append(" ms, p50/p99 per iteration (us):");
+		for (int i = 0; i < p99Nanos.length; i++) {
+			text.append(' ').append(p50Nanos[i] / 1000).append('/').append(p99Nanos[i] / 1000);
+		}
+		if (isConverged()) {
+			text.append(", converged");
+		} else {
+			text.append(", not converged within ").append(tolerance * 100).append('%');
+		}
+		return text.toString();
+	}
+
+}
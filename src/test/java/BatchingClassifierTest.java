@@ -0,0 +1,70 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+public class BatchingClassifierTest {
+
+	@Test(timeout = 10000)
+	public void classifiesEachImageOfTheBatch() {
+		try (BatchingClassifier<String> batching = new BatchingClassifier<>(imageBytes -> "" + imageBytes.length, 8,
+				1, TimeUnit.MILLISECONDS)) {
+			List<String> classes = batching.classifyBatch(Arrays.asList(new byte[1], new byte[2], new byte[3]));
+			assertEquals(Arrays.asList("1", "2", "3"), classes);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void errorOfTheClassifierFailsTheBatchAndKeepsDispatching() throws Exception {
+		Classifier<String> failingOnce = new Classifier<String>() {
+			private boolean failed;
+
+			@Override
+			public String classify(byte[] imageBytes) {
+				if (!failed) {
+					failed = true;
+					throw new UnsatisfiedLinkError("native failure");
+				}
+				return "ok";
+			}
+		};
+
+		try (BatchingClassifier<String> batching = new BatchingClassifier<>(failingOnce, 8, 1,
+				TimeUnit.MILLISECONDS)) {
+			CompletableFuture<String> failed = batching.submit(new byte[1]);
+			try {
+				failed.get(5, TimeUnit.SECONDS);
+				fail("Expected the classifier error");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof UnsatisfiedLinkError);
+			}
+
+			assertEquals("ok", batching.submit(new byte[1]).get(5, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void submitAfterCloseFails() throws Exception {
+		BatchingClassifier<String> batching = new BatchingClassifier<>(imageBytes -> "ok", 8, 1,
+				TimeUnit.MILLISECONDS);
+		batching.close();
+
+		try {
+			batching.submit(new byte[1]).get(5, TimeUnit.SECONDS);
+			fail("Expected the classifier to be closed");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		} catch (TimeoutException e) {
+			fail("Image submitted after close was never completed");
+		}
+	}
+
+}
@@ -0,0 +1,128 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+public class BulkDecaptcherTest {
+
+	@Test(timeout = 10000)
+	public void decapchaAllKeepsTheOrderOfTheImages() throws Exception {
+		Map<String, byte[]> images = new LinkedHashMap<>();
+		for (int i = 99; i >= 0; i--) {
+			images.put("captcha" + i, new byte[] { (byte) i });
+		}
+
+		try (BulkDecaptcher decaptcher = new BulkDecaptcher(image -> "text" + image[0], 4, 8)) {
+			Map<String, String> captchas = decaptcher.decapchaAll(images);
+
+			assertEquals(new ArrayList<>(images.keySet()), new ArrayList<>(captchas.keySet()));
+			assertEquals("text42", captchas.get("captcha42"));
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void failedCaptchasAreReportedOnceTheOthersAreSolved() throws Exception {
+		Map<String, byte[]> images = new LinkedHashMap<>();
+		for (int i = 0; i < 50; i++) {
+			images.put("captcha" + i, new byte[] { (byte) i });
+		}
+
+		Map<String, String> solved = new ConcurrentHashMap<>();
+		try (BulkDecaptcher decaptcher = new BulkDecaptcher(image -> {
+			if (image[0] % 10 == 3) {
+				throw new IllegalArgumentException("Unreadable image " + image[0]);
+			}
+			return "text" + image[0];
+		}, 4, 8)) {
+			try {
+				decaptcher.decapchaAll(images.entrySet().iterator(), solved::put);
+				fail("Failed captchas must be reported");
+			} catch (IllegalStateException e) {
+				assertTrue(e.getMessage(), e.getMessage().startsWith("5 captchas failed"));
+				assertTrue(e.getCause() instanceof IllegalArgumentException);
+				assertEquals(4, e.getSuppressed().length);
+			}
+		}
+		assertEquals(45, solved.size());
+	}
+
+	@Test(timeout = 10000)
+	public void failingIteratorWaitsForTheCaptchasSubmitted() throws Exception {
+		Iterator<Map.Entry<String, byte[]>> images = new Iterator<Map.Entry<String, byte[]>>() {
+			private int next;
+
+			@Override
+			public boolean hasNext() {
+				return true;
+			}
+
+			@Override
+			public Map.Entry<String, byte[]> next() {
+				if (next == 3) {
+					throw new UncheckedIOException(new IOException("Unreadable archive"));
+				}
+				next++;
+				return new AbstractMap.SimpleImmutableEntry<>("captcha" + next, new byte[] { (byte) next });
+			}
+		};
+
+		Map<String, String> solved = new ConcurrentHashMap<>();
+		try (BulkDecaptcher decaptcher = new BulkDecaptcher(image -> {
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return "text" + image[0];
+		}, 4, 8)) {
+			try {
+				decaptcher.decapchaAll(images, solved::put);
+				fail("The failure of the iterator must be thrown");
+			} catch (UncheckedIOException e) {
+				// Expected, once the captchas already submitted are solved
+				assertEquals(3, solved.size());
+			}
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void failuresOfTheConsumerAreHandedToOnFailure() throws Exception {
+		Map<String, byte[]> images = new LinkedHashMap<>();
+		for (int i = 0; i < 20; i++) {
+			images.put("captcha" + i, new byte[] { (byte) i });
+		}
+
+		List<String> results = new ArrayList<>();
+		List<String> failures = new ArrayList<>();
+		try (BulkDecaptcher decaptcher = new BulkDecaptcher(image -> "text" + image[0], 4, 8)) {
+			decaptcher.solveAll(images.entrySet().iterator(), image -> image[0], (key, value) -> {
+				if (value == 7) {
+					throw new IllegalStateException("Can not write " + key);
+				}
+				synchronized (results) {
+					results.add(key);
+				}
+			}, (key, failure) -> {
+				synchronized (failures) {
+					failures.add(key);
+				}
+			});
+		}
+
+		assertEquals(19, results.size());
+		assertEquals(1, failures.size());
+		assertEquals("captcha7", failures.get(0));
+	}
+
+}
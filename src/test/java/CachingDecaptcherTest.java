@@ -0,0 +1,136 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CachingDecaptcherTest {
+
+	@Test
+	public void repeatedImageIsAnsweredFromCache() {
+		AtomicInteger calls = new AtomicInteger();
+		CachingDecaptcher cache = new CachingDecaptcher(image -> "answer" + calls.incrementAndGet(), 10, 1,
+				TimeUnit.MINUTES);
+
+		assertEquals("answer1", cache.decapcha(new byte[] { 1, 2, 3 }));
+		assertEquals("answer1", cache.decapcha(new byte[] { 1, 2, 3 }));
+		assertEquals("answer2", cache.decapcha(new byte[] { 4, 5, 6 }));
+		assertEquals(2, calls.get());
+		assertEquals(1, cache.hitCount());
+		assertEquals(2, cache.missCount());
+	}
+
+	@Test
+	public void timeToLiveStartsOnceAnswered() {
+		AtomicInteger calls = new AtomicInteger();
+		CachingDecaptcher cache = new CachingDecaptcher(image -> {
+			calls.incrementAndGet();
+			try {
+				// Slower than the time to live, like a remote solve
+				Thread.sleep(300);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return "answer";
+		}, 10, 200, TimeUnit.MILLISECONDS);
+
+		assertEquals("answer", cache.decapcha(new byte[] { 1, 2, 3 }));
+		assertEquals("answer", cache.decapcha(new byte[] { 1, 2, 3 }));
+		assertEquals(1, calls.get());
+		assertEquals(1, cache.hitCount());
+	}
+
+	@Test(timeout = 10000)
+	public void concurrentMissesOfTheSameImageAreSolvedOnce() throws Exception {
+		AtomicInteger calls = new AtomicInteger();
+		CountDownLatch release = new CountDownLatch(1);
+		CachingDecaptcher cache = new CachingDecaptcher(image -> {
+			calls.incrementAndGet();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return "answer";
+		}, 10, 1, TimeUnit.MINUTES);
+
+		int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<String>> answers = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				answers.add(executor.submit(() -> cache.decapcha(new byte[] { 1, 2, 3 })));
+			}
+
+			// Let every thread reach the cache before the first solve ends
+			while (cache.missCount() + cache.joinCount() < threads) {
+				Thread.sleep(1);
+			}
+			release.countDown();
+
+			for (Future<String> answer : answers) {
+				assertEquals("answer", answer.get());
+			}
+			assertEquals(1, calls.get());
+			assertEquals(threads - 1, cache.joinCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void failureIsGivenToWaitingMissesAndNotCached() throws Exception {
+		AtomicInteger calls = new AtomicInteger();
+		CountDownLatch release = new CountDownLatch(1);
+		CachingDecaptcher cache = new CachingDecaptcher(image -> {
+			if (calls.incrementAndGet() == 1) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				throw new IllegalStateException("remote failure");
+			}
+			return "answer";
+		}, 10, 1, TimeUnit.MINUTES);
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<String> first = executor.submit(() -> cache.decapcha(new byte[] { 1 }));
+			while (cache.missCount() < 1) {
+				Thread.sleep(1);
+			}
+			Future<String> second = executor.submit(() -> cache.decapcha(new byte[] { 1 }));
+			while (cache.joinCount() < 1) {
+				Thread.sleep(1);
+			}
+			release.countDown();
+
+			for (Future<String> answer : Arrays.asList(first, second)) {
+				try {
+					answer.get();
+					fail("Expected the remote failure");
+				} catch (ExecutionException e) {
+					assertTrue(e.getCause() instanceof IllegalStateException);
+				}
+			}
+
+			assertEquals("answer", cache.decapcha(new byte[] { 1 }));
+			assertEquals(2, calls.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+}
@@ -0,0 +1,134 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link CaptchaSolverServer} over raw sockets, so requests can be
+ * malformed or sent slowly. Images sent as "slow" are solved only once the test
+ * releases them.
+ */
+public class CaptchaSolverServerTest {
+
+	private CaptchaSolverServer server;
+
+	private final CountDownLatch slowSolving = new CountDownLatch(1);
+	private final CountDownLatch releaseSlow = new CountDownLatch(1);
+
+	@Before
+	public void setUp() throws IOException {
+		Decaptcher decaptcher = image -> {
+			if (new String(image, StandardCharsets.US_ASCII).equals("slow")) {
+				slowSolving.countDown();
+				try {
+					releaseSlow.await(30, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return "answer";
+		};
+		server = new CaptchaSolverServer(new InetSocketAddress("127.0.0.1", 0), decaptcher, 1, null);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		releaseSlow.countDown();
+		server.close();
+	}
+
+	@Test(timeout = 10000)
+	public void requestsOverMaxInFlightAreShed() throws Exception {
+		CompletableFuture<String> slow = CompletableFuture.supplyAsync(() -> {
+			try {
+				return statusLine(post("4", "slow"));
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		slowSolving.await();
+
+		assertEquals("HTTP/1.1 503 Service Unavailable", statusLine(post("5", "image")));
+
+		releaseSlow.countDown();
+		assertEquals("HTTP/1.1 200 OK", slow.get());
+		assertTrue(metrics().contains("captcha_server_shed_total 1\n"));
+	}
+
+	@Test(timeout = 10000)
+	public void slowUploadsDoNotHoldThePermit() throws Exception {
+		try (Socket upload = new Socket("127.0.0.1", server.port())) {
+			// Half of the body only
+			send(upload, "POST /solve HTTP/1.1\r\nHost: localhost\r\nContent-Length: 10\r\n\r\nhalf ");
+
+			assertEquals("HTTP/1.1 200 OK", statusLine(post("5", "image")));
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void invalidContentLengthIsABadRequest() throws Exception {
+		for (String contentLength : new String[] { "-5", "five" }) {
+			String status = statusLine("POST /solve HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + contentLength
+					+ "\r\nConnection: close\r\n\r\nimage");
+			assertEquals(contentLength, "HTTP/1.1 400 Bad Request", status);
+		}
+		assertTrue(metrics().contains("captcha_server_failed_total 0\n"));
+	}
+
+	private static String post(String contentLength, String body) {
+		return "POST /solve HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + contentLength
+				+ "\r\nConnection: close\r\n\r\n" + body;
+	}
+
+	private String metrics() throws IOException {
+		try (Socket socket = new Socket("127.0.0.1", server.port())) {
+			send(socket, "GET /metrics HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+			StringBuilder response = new StringBuilder();
+			BufferedReader reader = reader(socket);
+			String line;
+			while ((line = reader.readLine()) != null) {
+				response.append(line).append('\n');
+			}
+			return response.toString();
+		}
+	}
+
+	/**
+	 * Send a request on a new connection.
+	 *
+	 * @param request
+	 * @return status line of the response
+	 * @throws IOException
+	 */
+	private String statusLine(String request) throws IOException {
+		try (Socket socket = new Socket("127.0.0.1", server.port())) {
+			send(socket, request);
+			return reader(socket).readLine();
+		}
+	}
+
+	private static void send(Socket socket, String text) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		out.write(text.getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+	}
+
+	private static BufferedReader reader(Socket socket) throws IOException {
+		return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+	}
+
+}
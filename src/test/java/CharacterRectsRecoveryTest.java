@@ -0,0 +1,107 @@
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+
+/**
+ * Recovery of one rectangle per character by
+ * {@link CaptchaImageProcessor#findCharacterRects(Mat, double, double)} on
+ * synthetic thresholded images: black characters drawn as rectangles on a white
+ * background, for both segmentations.
+ */
+public class CharacterRectsRecoveryTest {
+
+	private static final int ROWS = 60;
+	private static final int COLS = 200;
+
+	@Test
+	public void touchingCharactersAreSplitAtTheirJunction() {
+		for (CaptchaImageProcessor.Segmentation segmentation : CaptchaImageProcessor.Segmentation.values()) {
+			try (MatScope scope = new MatScope()) {
+				Mat image = canvas(scope);
+				fill(image, new Rect(10, 10, 20, 40));
+				// Two characters joined by a thin stroke
+				fill(image, new Rect(60, 10, 20, 40));
+				fill(image, new Rect(80, 28, 1, 2));
+				fill(image, new Rect(81, 10, 20, 40));
+				fill(image, new Rect(130, 10, 20, 40));
+
+				List<Rect> rects = processor(0, segmentation).findCharacterRects(image, 5, 5);
+
+				assertEquals(segmentation.name(), Arrays.asList(new Rect(10, 10, 20, 40), new Rect(60, 10, 20, 40),
+						new Rect(80, 10, 21, 40), new Rect(130, 10, 20, 40)), rects);
+			}
+		}
+	}
+
+	@Test
+	public void holesAreMergedIntoTheirCharacter() {
+		for (CaptchaImageProcessor.Segmentation segmentation : CaptchaImageProcessor.Segmentation.values()) {
+			try (MatScope scope = new MatScope()) {
+				Mat image = canvas(scope);
+				// A 0, whose hole is a contour nested in the character
+				fill(image, new Rect(10, 10, 30, 40));
+				fill(image, new Rect(18, 18, 14, 24), 255);
+				fill(image, new Rect(60, 10, 20, 40));
+
+				List<Rect> rects = processor(0, segmentation).findCharacterRects(image, 5, 5);
+
+				assertEquals(segmentation.name(), Arrays.asList(new Rect(10, 10, 30, 40), new Rect(60, 10, 20, 40)),
+						rects);
+			}
+		}
+	}
+
+	@Test
+	public void noiseIsDroppedWhenTooManyCharactersAreFound() {
+		for (CaptchaImageProcessor.Segmentation segmentation : CaptchaImageProcessor.Segmentation.values()) {
+			try (MatScope scope = new MatScope()) {
+				Mat image = canvas(scope);
+				fill(image, new Rect(10, 10, 20, 40));
+				// Noise blob large enough to pass the minimum size
+				fill(image, new Rect(40, 50, 8, 8));
+				fill(image, new Rect(60, 10, 20, 40));
+				fill(image, new Rect(110, 10, 20, 40));
+
+				List<Rect> all = processor(0, segmentation).findCharacterRects(image, 5, 5);
+				List<Rect> rects = processor(3, segmentation).findCharacterRects(image, 5, 5);
+
+				assertEquals(segmentation.name(), 4, all.size());
+				assertEquals(segmentation.name(), Arrays.asList(new Rect(10, 10, 20, 40), new Rect(60, 10, 20, 40),
+						new Rect(110, 10, 20, 40)), rects);
+			}
+		}
+	}
+
+	private static CaptchaImageProcessor processor(int expectedCharacters,
+			CaptchaImageProcessor.Segmentation segmentation) {
+		return new CaptchaImageProcessor(1.0, true, expectedCharacters, segmentation);
+	}
+
+	/**
+	 * White thresholded image, without characters.
+	 */
+	private static Mat canvas(MatScope scope) {
+		return scope.add(new Mat(ROWS, COLS, CvType.CV_8UC1, new Scalar(255)));
+	}
+
+	private static void fill(Mat image, Rect rect) {
+		fill(image, rect, 0);
+	}
+
+	private static void fill(Mat image, Rect rect, double value) {
+		Mat region = image.submat(rect);
+		try {
+			region.setTo(new Scalar(value));
+		} finally {
+			region.release();
+		}
+	}
+
+}
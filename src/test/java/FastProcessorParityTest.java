@@ -0,0 +1,41 @@
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.junit.Test;
+
+/**
+ * Accuracy parity of {@link CaptchaImageProcessor#fastProcessor()} with the
+ * default processor over the bundled samples, both followed by the same
+ * classifier.
+ */
+public class FastProcessorParityTest {
+
+	// Thresholding at native resolution may change a character of one captcha in twenty, not more
+	private static final double MIN_AGREEMENT = 0.95;
+
+	@Test
+	public void fastProcessorSolvesTheSamplesLikeTheDefaultOne() throws Exception {
+		CaptchaClassifier classifier = new CaptchaClassifier(DLDecaptcher.DEFAULT_THRESHOLD);
+		DLDecaptcher reference = DLDecaptcher.withClassifier(new CaptchaImageProcessor(), classifier);
+		DLDecaptcher fast = DLDecaptcher.withClassifier(CaptchaImageProcessor.fastProcessor(), classifier);
+
+		Map<String, byte[]> samples = TestSamples.all();
+		List<String> differences = new ArrayList<>();
+		for (Map.Entry<String, byte[]> sample : samples.entrySet()) {
+			String expected = reference.decapcha(sample.getValue());
+			String actual = fast.decapcha(sample.getValue());
+			if (!Objects.equals(expected, actual)) {
+				differences.add(sample.getKey() + ": " + expected + " != " + actual);
+			}
+		}
+
+		double agreement = 1 - (double) differences.size() / samples.size();
+		assertTrue("Fast processor agrees on " + agreement + " of the samples: " + differences,
+				agreement >= MIN_AGREEMENT);
+	}
+
+}
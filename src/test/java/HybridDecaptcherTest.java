@@ -0,0 +1,201 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests of {@link HybridDecaptcher} against a local fake of the 2captcha API,
+ * answering the upper case text of the image, and a fake local decaptcher
+ * reading the image as "text" or "text?", the last character being rejected
+ * when followed by a question mark. Images sent as "broken" are refused by the
+ * fake 2captcha.
+ */
+public class HybridDecaptcherTest {
+
+	private HttpServer server;
+	private ExecutorService serverThreads;
+	private TwoCaptchaDecaptcher remote;
+
+	private final AtomicInteger nextId = new AtomicInteger();
+	private final AtomicInteger uploads = new AtomicInteger();
+	private final Map<String, String> answers = new ConcurrentHashMap<>();
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		serverThreads = Executors.newCachedThreadPool();
+		server.setExecutor(serverThreads);
+		server.createContext("/in.php", this::upload);
+		server.createContext("/res.php", this::poll);
+		server.start();
+
+		remote = new TwoCaptchaDecaptcher("key", "http://127.0.0.1:" + server.getAddress().getPort());
+		remote.setPolling(0, 10, 1, 10, TimeUnit.MILLISECONDS);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		remote.close();
+		server.stop(0);
+		serverThreads.shutdownNow();
+	}
+
+	private void upload(HttpExchange exchange) throws IOException {
+		uploads.incrementAndGet();
+		String body = read(exchange.getRequestBody());
+		String image = "";
+		for (String parameter : body.split("&")) {
+			if (parameter.startsWith("body=")) {
+				image = new String(Base64.getDecoder().decode(URLDecoder.decode(parameter.substring(5), "UTF-8")),
+						StandardCharsets.UTF_8);
+			}
+		}
+
+		if (image.equals("broken?")) {
+			respond(exchange, "ERROR_IMAGE_TYPE_NOT_SUPPORTED");
+			return;
+		}
+
+		String id = Integer.toString(nextId.incrementAndGet());
+		answers.put(id, image.replace("?", "").toUpperCase());
+		respond(exchange, "OK|" + id);
+	}
+
+	private void poll(HttpExchange exchange) throws IOException {
+		String query = exchange.getRequestURI().getQuery();
+		String ids = query.substring(query.indexOf("ids=") + 4).split("&")[0];
+		List<String> results = new ArrayList<>();
+		for (String id : URLDecoder.decode(ids, "UTF-8").split(",")) {
+			results.add(answers.getOrDefault(id, "CAPCHA_NOT_READY"));
+		}
+		respond(exchange, String.join("|", results));
+	}
+
+	private static String read(InputStream in) throws IOException {
+		StringBuilder text = new StringBuilder();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			text.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+		}
+		return text.toString();
+	}
+
+	private static void respond(HttpExchange exchange, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Local decaptcher accepting every character of the image text, but a last
+	 * one followed by a question mark.
+	 */
+	private static CaptchaPrediction predict(byte[] captchaImage) {
+		String text = new String(captchaImage, StandardCharsets.UTF_8);
+		boolean unsure = text.endsWith("?");
+		text = text.replace("?", "");
+
+		List<CharacterPrediction> characters = new ArrayList<>();
+		for (int i = 0; i < text.length(); i++) {
+			boolean accepted = !unsure || i < text.length() - 1;
+			characters.add(new CharacterPrediction(new String[] { text.substring(i, i + 1) },
+					new float[] { accepted ? 0.9f : 0.3f }, accepted, null));
+		}
+		return new CaptchaPrediction(characters);
+	}
+
+	private HybridDecaptcher hybrid(int maxPendingRemote, long minRemoteInterval) {
+		return new HybridDecaptcher(HybridDecaptcherTest::predict, remote, 4, maxPendingRemote, minRemoteInterval,
+				TimeUnit.MILLISECONDS);
+	}
+
+	private static byte[] image(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test(timeout = 20000)
+	public void sureAnswersAreNotEscalated() throws Exception {
+		HybridDecaptcher decaptcher = hybrid(8, 0);
+
+		HybridDecaptcher.Answer answer = decaptcher.solveAsync(image("abcd")).get(10, TimeUnit.SECONDS);
+
+		assertEquals("abcd", answer.text());
+		assertEquals(HybridDecaptcher.Source.LOCAL, answer.source());
+		assertFalse(answer.isFallback());
+		assertEquals(1, decaptcher.localCount());
+		assertEquals(0, uploads.get());
+	}
+
+	@Test(timeout = 20000)
+	public void unexpectedNumberOfCharactersIsEscalated() throws Exception {
+		HybridDecaptcher decaptcher = hybrid(8, 0);
+
+		// Every character accepted, but one is missing
+		HybridDecaptcher.Answer answer = decaptcher.solveAsync(image("abc")).get(10, TimeUnit.SECONDS);
+
+		assertEquals("ABC", answer.text());
+		assertEquals(HybridDecaptcher.Source.REMOTE, answer.source());
+		assertEquals(1, decaptcher.escalatedCount());
+		assertEquals(1, uploads.get());
+	}
+
+	@Test(timeout = 20000)
+	public void escalationsOverTheRateLimitFallBackToTheLocalAnswer() throws Exception {
+		HybridDecaptcher decaptcher = hybrid(8, TimeUnit.HOURS.toMillis(1));
+
+		HybridDecaptcher.Answer first = decaptcher.solveAsync(image("abcd?")).get(10, TimeUnit.SECONDS);
+		HybridDecaptcher.Answer second = decaptcher.solveAsync(image("efgh?")).get(10, TimeUnit.SECONDS);
+
+		assertEquals("ABCD", first.text());
+		assertEquals(HybridDecaptcher.Source.REMOTE, first.source());
+		// The last character is rejected locally
+		assertEquals("efg", second.text());
+		assertEquals(HybridDecaptcher.Source.RATE_LIMITED, second.source());
+		assertTrue(second.isFallback());
+		assertEquals(1, decaptcher.rateLimitedCount());
+		assertEquals(1, uploads.get());
+	}
+
+	@Test(timeout = 20000)
+	public void failedEscalationsFallBackToTheLocalAnswer() throws Exception {
+		HybridDecaptcher decaptcher = hybrid(1, 0);
+
+		HybridDecaptcher.Answer answer = decaptcher.solveAsync(image("broken?")).get(10, TimeUnit.SECONDS);
+
+		assertEquals("broke", answer.text());
+		assertEquals(HybridDecaptcher.Source.REMOTE_FAILED, answer.source());
+		assertTrue(answer.isFallback());
+		assertNotNull(answer.remoteFailure());
+		assertEquals(1, decaptcher.remoteFailureCount());
+
+		// The remote call permit was given back
+		assertEquals("ABCD", decaptcher.decapcha(image("abcd?")));
+	}
+
+}
@@ -0,0 +1,50 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Parity of {@link JavaCnnClassifier} with {@link CaptchaClassifier} over the
+ * characters segmented from the bundled samples. Both classify the same
+ * normalized pixels, so only the order of the float operations differs.
+ */
+public class JavaCnnClassifierTest {
+
+	private static final float PROBABILITY_TOLERANCE = 1e-4f;
+
+	@Test
+	public void classifiesNormalizedPixelsLikeTensorflow() throws Exception {
+		ModelRegistry registry = ModelRegistry.shared();
+		CaptchaClassifier tensorflow = new CaptchaClassifier(0, registry);
+		JavaCnnClassifier java = new JavaCnnClassifier(0, registry);
+		CaptchaImageProcessor processor = new CaptchaImageProcessor();
+
+		int characters = 0;
+		List<String> mismatches = new ArrayList<>();
+		for (Map.Entry<String, byte[]> sample : TestSamples.all().entrySet()) {
+			List<CharacterImage> pixels = processor.processPixels(sample.getValue());
+			List<CharacterPrediction> expected = tensorflow.predictPixels(pixels);
+			List<CharacterPrediction> actual = java.predictPixels(pixels);
+			assertEquals(sample.getKey(), expected.size(), actual.size());
+
+			for (int i = 0; i < expected.size(); i++) {
+				characters++;
+				CharacterPrediction expectedChar = expected.get(i);
+				CharacterPrediction actualChar = actual.get(i);
+				if (!expectedChar.label().equals(actualChar.label())
+						|| Math.abs(expectedChar.probability() - actualChar.probability()) > PROBABILITY_TOLERANCE) {
+					mismatches.add(sample.getKey() + " character " + i + ": " + expectedChar.label() + " "
+							+ expectedChar.probability() + " != " + actualChar.label() + " " + actualChar.probability());
+				}
+			}
+		}
+
+		assertTrue("No character segmented from the samples", characters > 0);
+		assertTrue(mismatches.size() + " of " + characters + " characters differ: " + mismatches, mismatches.isEmpty());
+	}
+
+}
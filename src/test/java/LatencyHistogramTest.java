@@ -0,0 +1,43 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void percentilesOfLongLatenciesAreWithinTheBucketPrecision() {
+		long[] latencies = { TimeUnit.SECONDS.toNanos(1), TimeUnit.SECONDS.toNanos(5), TimeUnit.SECONDS.toNanos(60) };
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long latency : latencies) {
+			for (int i = 0; i < 100; i++) {
+				histogram.record(latency);
+			}
+		}
+
+		assertWithinPrecision(latencies[0], histogram.percentile(0.3));
+		assertWithinPrecision(latencies[1], histogram.percentile(0.6));
+		assertWithinPrecision(latencies[2], histogram.percentile(0.99));
+		assertEquals(latencies[2], histogram.max());
+	}
+
+	@Test
+	public void percentilesOfShortLatenciesAreWithinTheBucketPrecision() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long latency = 1; latency <= 1000; latency++) {
+			histogram.record(TimeUnit.MICROSECONDS.toNanos(latency));
+		}
+
+		assertWithinPrecision(TimeUnit.MICROSECONDS.toNanos(500), histogram.percentile(0.5));
+		assertWithinPrecision(TimeUnit.MICROSECONDS.toNanos(990), histogram.percentile(0.99));
+	}
+
+	private static void assertWithinPrecision(long expected, long percentile) {
+		assertTrue(percentile + " < " + expected, percentile >= expected);
+		assertTrue(percentile + " > " + expected + " + 6.25%", percentile <= expected + expected / 16);
+	}
+
+}
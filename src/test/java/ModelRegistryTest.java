@@ -0,0 +1,110 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ModelRegistryTest {
+
+	private static CnnModel model(String version) {
+		return new CnnModel(version, new byte[0], new String[] { "0", "1" }, new SessionConfig(1, 1, 1, false));
+	}
+
+	@Test
+	public void acquiredModelIsNotRetiredByClose() {
+		CnnModel model = model("v1");
+		ModelRegistry registry = new ModelRegistry(model);
+
+		assertSame(model, registry.acquire());
+		registry.close();
+		try {
+			registry.acquire();
+			fail("A closed registry must not give models");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+
+		// Still retained: retired by its last release
+		registry.release(model);
+		try {
+			model.sessionPool();
+			fail("A retired model must not give sessions");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void retiredModelHasNoSessions() {
+		CnnModel model = model("v1");
+		new ModelRegistry(model).close();
+		model.sessionPool();
+	}
+
+	@Test
+	public void swapOfAClosedRegistryRetiresTheNewModel() {
+		ModelRegistry registry = new ModelRegistry(model("v1"));
+		registry.close();
+
+		CnnModel model = model("v2");
+		try {
+			registry.swap(model);
+			fail("A closed registry must not take models");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		assertRetired(model);
+	}
+
+	@Test(timeout = 20000)
+	public void swapRacingCloseRetiresEveryModelOnce() throws Exception {
+		CyclicBarrier start = new CyclicBarrier(2);
+		for (int i = 0; i < 200; i++) {
+			CnnModel first = model("v1");
+			CnnModel second = model("v2");
+			ModelRegistry registry = new ModelRegistry(first);
+
+			CompletableFuture<String> swap = CompletableFuture.supplyAsync(() -> {
+				await(start);
+				try {
+					return registry.swap(second);
+				} catch (IllegalStateException e) {
+					// Closed first
+					return null;
+				}
+			});
+			await(start);
+			registry.close();
+			String replaced = swap.get(10, TimeUnit.SECONDS);
+
+			assertTrue(replaced == null || replaced.equals("v1"));
+			// A model released twice would look alive again, a leaked one would still be
+			assertRetired(first);
+			assertRetired(second);
+			assertEquals(replaced == null ? first : second, registry.current());
+		}
+	}
+
+	private static void assertRetired(CnnModel model) {
+		try {
+			model.sessionPool();
+			fail(model + " must be retired");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	private static void await(CyclicBarrier barrier) {
+		try {
+			barrier.await(10, TimeUnit.SECONDS);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
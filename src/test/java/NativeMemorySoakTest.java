@@ -0,0 +1,82 @@
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Soak test of native memory: runs the samples through both paths of the
+ * image processor, segmented characters encoded as JPEG and as pixels, many
+ * times. With every Mat released deterministically, the native memory of the
+ * process, its resident memory less the heap, must level off after warm-up
+ * instead of growing with the number of captchas.
+ * 
+ * The number of captchas can be raised for a longer soak, e.g.
+ * mvn test -Dtest=NativeMemorySoakTest -Dsoak.captchas=100000
+ */
+public class NativeMemorySoakTest {
+
+	private static final Path PROC_STATUS = Paths.get("/proc/self/status");
+
+	private static final int WARM_UP_CAPTCHAS = 1000;
+
+	// A single Mat leaked per captcha, even a decoded 200x50 captcha, would exceed it
+	private static final long MAX_NATIVE_GROWTH_KB = 64 * 1024;
+
+	@Test
+	public void nativeMemoryLevelsOffAfterWarmUp() throws IOException {
+		Assume.assumeTrue("Resident memory is read from /proc on Linux", Files.isReadable(PROC_STATUS));
+
+		int captchas = Integer.getInteger("soak.captchas", 5000);
+		CaptchaImageProcessor processor = new CaptchaImageProcessor();
+		List<byte[]> samples = new ArrayList<>(TestSamples.all().values());
+
+		process(processor, samples, WARM_UP_CAPTCHAS);
+		long nativeBefore = nativeMemoryKb();
+
+		long characters = process(processor, samples, captchas);
+		long growth = nativeMemoryKb() - nativeBefore;
+
+		assertTrue("Native memory grew by " + growth + " kB over " + captchas + " captchas",
+				growth < MAX_NATIVE_GROWTH_KB);
+		assertTrue("No character segmented", characters > 0);
+	}
+
+	/**
+	 * Process captchas, alternating the JPEG and the pixels paths.
+	 * 
+	 * @return number of characters segmented
+	 */
+	private static long process(CaptchaImageProcessor processor, List<byte[]> samples, int captchas)
+			throws IOException {
+		long characters = 0;
+		for (int i = 0; i < captchas; i++) {
+			byte[] sample = samples.get(i % samples.size());
+			characters += i % 2 == 0 ? processor.process(sample).size() : processor.processPixels(sample).size();
+		}
+		return characters;
+	}
+
+	/**
+	 * Resident memory of the process not committed to the Java heap. The
+	 * collector is not run, so Mats left to finalization stay counted.
+	 * 
+	 * @return memory in kB
+	 */
+	private static long nativeMemoryKb() throws IOException {
+		long heapCommittedKb = Runtime.getRuntime().totalMemory() / 1024;
+		for (String line : Files.readAllLines(PROC_STATUS)) {
+			if (line.startsWith("VmRSS:")) {
+				return Long.parseLong(line.replaceAll("[^0-9]", "")) - heapCommittedKb;
+			}
+		}
+		throw new IOException("No VmRSS in " + PROC_STATUS);
+	}
+
+}
@@ -0,0 +1,51 @@
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * Equivalence of the segmentations of {@link CaptchaImageProcessor}: contours
+ * and connected components must find the same character rectangles in every
+ * sample, for the default and the fast processor.
+ */
+public class SegmentationEquivalenceTest {
+
+	@Test
+	public void connectedComponentsFindTheRectanglesOfContours() throws Exception {
+		check(CaptchaImageProcessor.DEFAULT_SCALE, false);
+	}
+
+	@Test
+	public void connectedComponentsFindTheRectanglesOfContoursAtNativeResolution() throws Exception {
+		check(1.0, true);
+	}
+
+	private static void check(double scale, boolean meanBackgroundCheck) throws Exception {
+		CaptchaImageProcessor contours = new CaptchaImageProcessor(scale, meanBackgroundCheck, 0,
+				CaptchaImageProcessor.Segmentation.CONTOURS);
+		CaptchaImageProcessor components = new CaptchaImageProcessor(scale, meanBackgroundCheck, 0,
+				CaptchaImageProcessor.Segmentation.CONNECTED_COMPONENTS);
+
+		List<String> mismatches = new ArrayList<>();
+		for (Map.Entry<String, byte[]> sample : TestSamples.all().entrySet()) {
+			try (MatScope scope = new MatScope()) {
+				Mat image = scope.add(CaptchaImageProcessor.byteArray2Mat(sample.getValue()));
+				Mat thresholded = scope.add(contours.thresholdCaptchaImage(image));
+
+				List<Rect> expected = contours.findCharacterRects(thresholded, 5, 5);
+				List<Rect> actual = components.findCharacterRects(thresholded, 5, 5);
+				if (!expected.equals(actual)) {
+					mismatches.add(sample.getKey() + ": contours " + expected + ", connected components " + actual);
+				}
+			}
+		}
+
+		assertTrue(mismatches.size() + " samples segmented differently: " + mismatches, mismatches.isEmpty());
+	}
+
+}
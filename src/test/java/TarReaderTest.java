@@ -0,0 +1,120 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TarReaderTest {
+
+	private static final String LONG_NAME = String.join("/", "captchas", repeat('a', 60), repeat('b', 60), "1234.jpg");
+
+	@Test
+	public void readsRegularFilesWithPosixPrefix() throws IOException {
+		ByteArrayOutputStream tar = new ByteArrayOutputStream();
+		entry(tar, "captchas/", '5', new byte[0], "ustar\0", "");
+		entry(tar, "1234.jpg", '0', new byte[] { 1, 2, 3 }, "ustar\0", "captchas");
+
+		List<Map.Entry<String, byte[]>> entries = read(tar);
+		assertEquals(1, entries.size());
+		assertEquals("captchas/1234.jpg", entries.get(0).getKey());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, entries.get(0).getValue());
+	}
+
+	@Test
+	public void readsGnuLongNames() throws IOException {
+		ByteArrayOutputStream tar = new ByteArrayOutputStream();
+		byte[] longName = (LONG_NAME + "\0").getBytes(StandardCharsets.US_ASCII);
+		entry(tar, "././@LongLink", 'L', longName, "ustar  \0", "");
+		entry(tar, LONG_NAME.substring(0, 100), '0', new byte[] { 4 }, "ustar  \0", "");
+		entry(tar, "5678.jpg", '0', new byte[] { 5 }, "ustar  \0", "");
+
+		List<Map.Entry<String, byte[]>> entries = read(tar);
+		assertEquals(2, entries.size());
+		assertEquals(LONG_NAME, entries.get(0).getKey());
+		assertArrayEquals(new byte[] { 4 }, entries.get(0).getValue());
+		// The long name only applies to the entry following it
+		assertEquals("5678.jpg", entries.get(1).getKey());
+	}
+
+	@Test
+	public void readsPaxPaths() throws IOException {
+		String record = "path=" + LONG_NAME + "\n";
+		// Length of the record with its 3 digits and the space
+		byte[] pax = ((record.length() + 4) + " " + record).getBytes(StandardCharsets.UTF_8);
+		assertEquals(record.length() + 4, pax.length);
+
+		ByteArrayOutputStream tar = new ByteArrayOutputStream();
+		entry(tar, "PaxHeaders/1234.jpg", 'x', pax, "ustar\0", "");
+		entry(tar, "1234.jpg", '0', new byte[] { 6 }, "ustar\0", "");
+
+		List<Map.Entry<String, byte[]>> entries = read(tar);
+		assertEquals(1, entries.size());
+		assertEquals(LONG_NAME, entries.get(0).getKey());
+	}
+
+	private static List<Map.Entry<String, byte[]>> read(ByteArrayOutputStream tar) throws IOException {
+		// End of archive
+		tar.write(new byte[1024]);
+
+		Path archive = Files.createTempFile("captchas", ".tar");
+		try {
+			Files.write(archive, tar.toByteArray());
+			List<Map.Entry<String, byte[]>> entries = new ArrayList<>();
+			try (TarReader reader = new TarReader(archive)) {
+				while (reader.hasNext()) {
+					entries.add(reader.next());
+				}
+				assertFalse(reader.hasNext());
+			}
+			return entries;
+		} finally {
+			Files.delete(archive);
+		}
+	}
+
+	private static void entry(ByteArrayOutputStream tar, String name, char type, byte[] data, String magic,
+			String prefix) throws IOException {
+		byte[] header = new byte[512];
+		put(header, 0, name);
+		put(header, 100, "0000644\0");
+		put(header, 124, String.format("%011o\0", data.length));
+		put(header, 136, String.format("%011o\0", 0));
+		header[156] = (byte) type;
+		put(header, 257, magic);
+		put(header, 345, prefix);
+
+		// Checksum of the header with blanks in place of the checksum
+		Arrays.fill(header, 148, 156, (byte) ' ');
+		int checksum = 0;
+		for (byte b : header) {
+			checksum += b & 0xff;
+		}
+		put(header, 148, String.format("%06o\0 ", checksum));
+
+		tar.write(header);
+		tar.write(data);
+		tar.write(new byte[(512 - data.length % 512) % 512]);
+	}
+
+	private static void put(byte[] header, int offset, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(bytes, 0, header, offset, bytes.length);
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+}
@@ -0,0 +1,40 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Captcha images bundled in src/main/resources/Samples, used as input of the
+ * tests.
+ */
+final class TestSamples {
+
+	private static final Path DIR = Paths.get("src/main/resources/Samples");
+
+	private TestSamples() {
+	}
+
+	/**
+	 * All sample images by file name, in file name order.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	static Map<String, byte[]> all() throws IOException {
+		Map<String, byte[]> images = new TreeMap<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(DIR, "*.jpg")) {
+			for (Path file : files) {
+				images.put(file.getFileName().toString(), Files.readAllBytes(file));
+			}
+		}
+
+		if (images.isEmpty()) {
+			throw new IOException("No sample captcha found in " + DIR.toAbsolutePath());
+		}
+		return images;
+	}
+
+}
@@ -0,0 +1,192 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests of {@link TwoCaptchaDecaptcher} against a local fake of the 2captcha
+ * API. Images sent as "slow" are uploaded only once the test releases them.
+ */
+public class TwoCaptchaDecaptcherTest {
+
+	private HttpServer server;
+	private ExecutorService serverThreads;
+	private TwoCaptchaDecaptcher decaptcher;
+
+	private final CountDownLatch slowUploads = new CountDownLatch(1);
+	private final AtomicInteger nextId = new AtomicInteger();
+	private final Map<String, String> answers = new ConcurrentHashMap<>();
+	private volatile String pollError;
+	private volatile boolean answersReady = true;
+	private final AtomicInteger maxIdsPerPoll = new AtomicInteger();
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		serverThreads = Executors.newCachedThreadPool();
+		server.setExecutor(serverThreads);
+		server.createContext("/in.php", this::upload);
+		server.createContext("/res.php", this::poll);
+		server.start();
+
+		decaptcher = new TwoCaptchaDecaptcher("key", "http://127.0.0.1:" + server.getAddress().getPort());
+		decaptcher.setPolling(0, 10, 1, 10, TimeUnit.MILLISECONDS);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		slowUploads.countDown();
+		decaptcher.close();
+		server.stop(0);
+		serverThreads.shutdownNow();
+	}
+
+	private void upload(HttpExchange exchange) throws IOException {
+		String body = read(exchange.getRequestBody());
+		String image = "";
+		for (String parameter : body.split("&")) {
+			if (parameter.startsWith("body=")) {
+				image = new String(Base64.getDecoder().decode(URLDecoder.decode(parameter.substring(5), "UTF-8")),
+						StandardCharsets.UTF_8);
+			}
+		}
+
+		if (image.equals("slow")) {
+			try {
+				slowUploads.await(30, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		String id = Integer.toString(nextId.incrementAndGet());
+		answers.put(id, image.toUpperCase());
+		respond(exchange, "OK|" + id);
+	}
+
+	private void poll(HttpExchange exchange) throws IOException {
+		if (pollError != null) {
+			respond(exchange, pollError);
+			return;
+		}
+
+		String query = exchange.getRequestURI().getQuery();
+		String ids = query.substring(query.indexOf("ids=") + 4).split("&")[0];
+		List<String> results = new ArrayList<>();
+		for (String id : URLDecoder.decode(ids, "UTF-8").split(",")) {
+			results.add(answersReady ? answers.getOrDefault(id, "CAPCHA_NOT_READY") : "CAPCHA_NOT_READY");
+		}
+		maxIdsPerPoll.accumulateAndGet(results.size(), Math::max);
+		respond(exchange, String.join("|", results));
+	}
+
+	private static String read(InputStream in) throws IOException {
+		StringBuilder text = new StringBuilder();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			text.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+		}
+		return text.toString();
+	}
+
+	private static void respond(HttpExchange exchange, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private static byte[] image(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test(timeout = 20000)
+	public void slowUploadsDoNotDelayOtherCaptchas() throws Exception {
+		List<CompletableFuture<String>> slow = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			slow.add(decaptcher.decapchaAsync(image("slow")));
+		}
+
+		assertEquals("FAST", decaptcher.decapchaAsync(image("fast")).get(10, TimeUnit.SECONDS));
+		for (CompletableFuture<String> result : slow) {
+			assertFalse(result.isDone());
+		}
+
+		slowUploads.countDown();
+		for (CompletableFuture<String> result : slow) {
+			assertEquals("SLOW", result.get(10, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void largeBacklogsArePolledInChunks() throws Exception {
+		answersReady = false;
+		decaptcher.setTimeout(60, TimeUnit.SECONDS);
+
+		List<CompletableFuture<String>> results = new ArrayList<>();
+		for (int i = 0; i < 250; i++) {
+			results.add(decaptcher.decapchaAsync(image("captcha" + i)));
+		}
+		while (answers.size() < 250) {
+			Thread.sleep(10);
+		}
+
+		// Let the whole backlog become due at once
+		Thread.sleep(300);
+		answersReady = true;
+
+		for (int i = 0; i < results.size(); i++) {
+			assertEquals("CAPTCHA" + i, results.get(i).get(10, TimeUnit.SECONDS));
+		}
+		assertTrue("Polled " + maxIdsPerPoll + " ids at once", maxIdsPerPoll.get() <= 100);
+	}
+
+	@Test(timeout = 20000)
+	public void errorOfTheWholePollFailsTheCaptchas() throws Exception {
+		pollError = "ERROR_WRONG_USER_KEY";
+		decaptcher.setTimeout(60, TimeUnit.SECONDS);
+
+		List<CompletableFuture<String>> results = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			results.add(decaptcher.decapchaAsync(image("captcha")));
+		}
+
+		for (CompletableFuture<String> result : results) {
+			try {
+				result.get(10, TimeUnit.SECONDS);
+				fail("Expected the poll error");
+			} catch (ExecutionException e) {
+				assertEquals("ERROR_WRONG_USER_KEY", e.getCause().getMessage());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,23 @@
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class WarmUpReportTest {
+
+	@Test
+	public void convergesWhenTheLastP99IsWithinTolerance() {
+		WarmUpReport report = new WarmUpReport(10, 1000, new long[] { 50, 40, 40 }, new long[] { 900, 200, 210 },
+				0.1, 5000);
+		assertTrue(report.isConverged());
+		assertTrue(report.toString(), report.toString().endsWith(", converged"));
+	}
+
+	@Test
+	public void doesNotConvergeWhileTheP99Moves() {
+		WarmUpReport report = new WarmUpReport(10, 1000, new long[] { 50, 40 }, new long[] { 900, 200 }, 0.1, 5000);
+		assertFalse(report.isConverged());
+		assertFalse(new WarmUpReport(10, 1000, new long[] { 50 }, new long[] { 900 }, 0.1, 5000).isConverged());
+	}
+
+}